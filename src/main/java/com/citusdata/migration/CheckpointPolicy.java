@@ -0,0 +1,80 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+/*
+ * CheckpointPolicy decides when a stream shard stores a checkpoint, based on
+ * the time and the number of records since the previous checkpoint. Each
+ * checkpoint is a conditional write to the lease table, so checkpointing less
+ * often than every batch saves DynamoDB writes and latency, at the cost of
+ * re-applying more changes after a restart.
+ */
+public class CheckpointPolicy {
+
+	/* checkpoint after every batch */
+	public static final CheckpointPolicy EVERY_BATCH = new CheckpointPolicy(0, 0);
+
+	final long intervalMillis;
+	final long maxRecords;
+
+	/*
+	 * CheckpointPolicy creates a policy that checkpoints once intervalMillis
+	 * have passed or maxRecords records were applied since the previous
+	 * checkpoint, whichever comes first, with 0 meaning the threshold is not
+	 * used. If neither threshold is used, every batch is checkpointed.
+	 */
+	public CheckpointPolicy(long intervalMillis, long maxRecords) {
+		this.intervalMillis = intervalMillis;
+		this.maxRecords = maxRecords;
+	}
+
+	/*
+	 * isTimeBased returns whether the policy can require a checkpoint when no
+	 * new records arrive.
+	 */
+	public boolean isTimeBased() {
+		return intervalMillis > 0;
+	}
+
+	/*
+	 * shouldCheckpoint returns whether to checkpoint after the given number of
+	 * records were applied over the given time since the previous checkpoint.
+	 */
+	public boolean shouldCheckpoint(long recordsSinceCheckpoint, long millisSinceCheckpoint) {
+		if (recordsSinceCheckpoint == 0) {
+			return false;
+		}
+
+		if (intervalMillis <= 0 && maxRecords <= 0) {
+			return true;
+		}
+
+		if (intervalMillis > 0 && millisSinceCheckpoint >= intervalMillis) {
+			return true;
+		}
+
+		return maxRecords > 0 && recordsSinceCheckpoint >= maxRecords;
+	}
+
+	@Override
+	public String toString() {
+		if (intervalMillis <= 0 && maxRecords <= 0) {
+			return "every batch";
+		}
+
+		StringBuilder sb = new StringBuilder();
+
+		if (intervalMillis > 0) {
+			sb.append(String.format("every %d ms", intervalMillis));
+		}
+
+		if (maxRecords > 0) {
+			sb.append(sb.length() > 0 ? " or " : "every ");
+			sb.append(String.format("%d records", maxRecords));
+		}
+
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,529 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.citusdata.migration.CitusShardMap.Placement;
+import com.citusdata.migration.CitusShardMap.Shard;
+import com.citusdata.migration.datamodel.CopyFormat;
+import com.citusdata.migration.datamodel.PrimaryKeyValue;
+import com.citusdata.migration.datamodel.ScanProgress;
+import com.citusdata.migration.datamodel.StreamCheckpoint;
+import com.citusdata.migration.datamodel.TableColumn;
+import com.citusdata.migration.datamodel.TableEmitter;
+import com.citusdata.migration.datamodel.TableIndex;
+import com.citusdata.migration.datamodel.TableModification;
+import com.citusdata.migration.datamodel.TableRow;
+import com.citusdata.migration.datamodel.TableRowBatch;
+import com.citusdata.migration.datamodel.TableSchema;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * CitusDirectCopyEmitter loads batches into hash-distributed Citus tables by
+ * computing the shard of each row on the client and copying the rows directly
+ * into the shard placements on the workers, using parallel connections to the
+ * workers. Other writes, and batches for tables that are not hash-distributed,
+ * go to the coordinator through the underlying emitter.
+ *
+ * The COPYs do not take the locks of the coordinator, so the shard placements
+ * are fetched again before the COPYs on the workers are committed. If a shard
+ * was moved or split in the meantime, the COPYs are rolled back and the batch
+ * is copied through the coordinator instead.
+ *
+ * Since the COPYs on the workers and the scan progress on the coordinator are
+ * not stored in the same transaction, a batch may be partially loaded when the
+ * load is interrupted. When skipExistingRows is set, rows whose key already
+ * exists in the shard are skipped, such that the load can be resumed.
+ */
+public class CitusDirectCopyEmitter implements TableEmitter {
+
+	private static final Log LOG = LogFactory.getLog(CitusDirectCopyEmitter.class);
+
+	/* number of rows of the first batch for which the hash is checked against Citus */
+	static final int HASH_CHECK_ROWS = 16;
+
+	static final String URL_PREFIX = "jdbc:postgresql://";
+
+	final TableEmitter coordinatorEmitter;
+	final JDBCTableEmitter metadataEmitter;
+	final String coordinatorURL;
+	final CopyFormat copyFormat;
+	final int maxConnectionsPerWorker;
+
+	final Map<String, CitusShardMap> shardMaps;
+	final Map<String, BlockingQueue<JDBCTableEmitter>> workerEmitters;
+	final Map<String, Integer> workerConnectionCounts;
+
+	/* all connections to workers, including those in use by a COPY */
+	final Set<JDBCTableEmitter> allWorkerEmitters;
+	final ExecutorService copyExecutor;
+
+	boolean skipExistingRows;
+
+	public CitusDirectCopyEmitter(TableEmitter coordinatorEmitter, String coordinatorURL, CopyFormat copyFormat, int maxConnectionsPerWorker) throws SQLException {
+		if (!coordinatorURL.startsWith(URL_PREFIX)) {
+			throw new EmissionException("direct copy requires a URL of the form %shost:port/database", URL_PREFIX);
+		}
+
+		this.coordinatorEmitter = coordinatorEmitter;
+		this.metadataEmitter = new JDBCTableEmitter(coordinatorURL);
+		this.coordinatorURL = coordinatorURL;
+		this.copyFormat = copyFormat;
+		this.maxConnectionsPerWorker = maxConnectionsPerWorker;
+		this.shardMaps = new ConcurrentHashMap<>();
+		this.workerEmitters = new ConcurrentHashMap<>();
+		this.workerConnectionCounts = new ConcurrentHashMap<>();
+		this.allWorkerEmitters = ConcurrentHashMap.newKeySet();
+		this.copyExecutor = Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("direct-copy-%d").build());
+		this.skipExistingRows = false;
+	}
+
+	public void setSkipExistingRows(boolean skipExistingRows) {
+		this.skipExistingRows = skipExistingRows;
+	}
+
+	@Override
+	public TableSchema fetchSchema(String tableName) {
+		return coordinatorEmitter.fetchSchema(tableName);
+	}
+
+	@Override
+	public void createTable(TableSchema tableSchema) {
+		coordinatorEmitter.createTable(tableSchema);
+		shardMaps.remove(tableSchema.tableName);
+	}
+
+	@Override
+	public void createColumn(TableColumn column) {
+		coordinatorEmitter.createColumn(column);
+	}
+
+	@Override
+	public void createIndex(TableIndex tableIndex) {
+		coordinatorEmitter.createIndex(tableIndex);
+	}
+
+	@Override
+	public long copyFromReader(TableSchema tableSchema, Reader reader) {
+		return coordinatorEmitter.copyFromReader(tableSchema, reader);
+	}
+
+	/*
+	 * copyFromBatch splits the batch by shard and copies the rows for all
+	 * shards placed on the same worker in one transaction, with the workers
+	 * loading in parallel. The transactions are committed once all workers
+	 * have copied their rows and the placements have not changed, and the scan
+	 * progress of the batch is stored on the coordinator after that.
+	 */
+	@Override
+	public long copyFromBatch(TableRowBatch tableRowBatch) {
+		CitusShardMap shardMap = getShardMap(tableRowBatch.tableSchema);
+
+		if (shardMap == null) {
+			return coordinatorEmitter.copyFromBatch(tableRowBatch);
+		}
+
+		Map<String, Map<String, TableRowBatch>> workerBatches = splitBatch(tableRowBatch, shardMap);
+		List<String> nodeKeys = new ArrayList<>();
+		List<Future<JDBCTableEmitter>> copyFutures = new ArrayList<>();
+
+		for (Map.Entry<String, Map<String, TableRowBatch>> workerBatch : workerBatches.entrySet()) {
+			String nodeKey = workerBatch.getKey();
+			Map<String, TableRowBatch> shardBatches = workerBatch.getValue();
+
+			nodeKeys.add(nodeKey);
+			copyFutures.add(copyExecutor.submit(() -> copyToWorker(nodeKey, shardBatches)));
+		}
+
+		Map<String, JDBCTableEmitter> copyEmitters = new LinkedHashMap<>();
+		RuntimeException copyException = null;
+
+		/* wait for all workers, such that no COPY is running after a failure */
+		for (int copyIndex = 0; copyIndex < copyFutures.size(); copyIndex++) {
+			try {
+				copyEmitters.put(nodeKeys.get(copyIndex), copyFutures.get(copyIndex).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				if (copyException == null) {
+					copyException = new EmissionException(e);
+				}
+			} catch (ExecutionException e) {
+				if (copyException == null) {
+					Throwable cause = e.getCause();
+					copyException = cause instanceof RuntimeException ? (RuntimeException) cause : new EmissionException(e);
+				}
+			}
+		}
+
+		boolean placementsChanged = false;
+
+		if (copyException == null) {
+			try {
+				placementsChanged = !refreshShardMap(tableRowBatch.tableSchema, shardMap);
+			} catch (RuntimeException e) {
+				copyException = e;
+			}
+		}
+
+		copyException = endShardCopies(copyEmitters, copyException == null && !placementsChanged, copyException);
+
+		if (copyException != null) {
+			throw copyException;
+		}
+
+		if (placementsChanged) {
+			LOG.warn(String.format("Shard placements of table %s changed during the copy, copying the batch through the coordinator",
+					tableRowBatch.tableSchema.tableName));
+
+			return coordinatorEmitter.copyFromBatch(tableRowBatch);
+		}
+
+		ScanProgress scanProgress = tableRowBatch.getScanProgress();
+
+		if (scanProgress != null) {
+			coordinatorEmitter.saveScanProgress(scanProgress);
+		}
+
+		return tableRowBatch.size();
+	}
+
+	@Override
+	public void finishDataLoad(TableSchema tableSchema) {
+		coordinatorEmitter.finishDataLoad(tableSchema);
+	}
+
+	@Override
+	public boolean hasRows(TableSchema tableSchema) {
+		return coordinatorEmitter.hasRows(tableSchema);
+	}
+
+	/*
+	 * getShardMap returns the shard map of a hash-distributed table, or null if
+	 * rows cannot be copied into the shards directly.
+	 */
+	CitusShardMap getShardMap(TableSchema tableSchema) {
+		String tableName = tableSchema.tableName;
+		CitusShardMap shardMap = shardMaps.get(tableName);
+
+		if (shardMap == null) {
+			shardMap = fetchShardMap(tableSchema);
+
+			CitusShardMap existingShardMap = shardMaps.putIfAbsent(tableName, shardMap);
+
+			if (existingShardMap != null) {
+				shardMap = existingShardMap;
+			}
+		}
+
+		return shardMap.isEmpty() ? null : shardMap;
+	}
+
+	CitusShardMap fetchShardMap(TableSchema tableSchema) {
+		String tableName = tableSchema.tableName;
+		TableColumn distributionColumn = tableSchema.getDistributionColumn();
+
+		if (distributionColumn == null) {
+			return new CitusShardMap(tableName);
+		}
+
+		if (!CitusHash.isSupported(distributionColumn.type)) {
+			LOG.warn(String.format("Copying table %s through the coordinator, direct copy does not support distribution columns of type %s",
+					tableName, distributionColumn.type));
+			return new CitusShardMap(tableName);
+		}
+
+		CitusShardMap shardMap = metadataEmitter.fetchShardMap(tableName);
+
+		if (shardMap.isEmpty()) {
+			LOG.warn(String.format("Copying table %s through the coordinator, it is not hash-distributed", tableName));
+		}
+
+		return shardMap;
+	}
+
+	/*
+	 * refreshShardMap fetches the shard placements again and returns whether
+	 * they are the same as in the given shard map. If not, the new placements
+	 * are used for later batches.
+	 */
+	boolean refreshShardMap(TableSchema tableSchema, CitusShardMap shardMap) {
+		CitusShardMap currentShardMap = metadataEmitter.fetchShardMap(tableSchema.tableName);
+
+		if (currentShardMap.hasSamePlacements(shardMap)) {
+			return true;
+		}
+
+		currentShardMap.setHashChecked(shardMap.isHashChecked());
+		shardMaps.replace(tableSchema.tableName, shardMap, currentShardMap);
+
+		return false;
+	}
+
+	/*
+	 * endShardCopies commits or rolls back the transactions of the COPYs on the
+	 * workers and returns the connections to the idle connections. If a commit
+	 * fails, the remaining transactions are rolled back. It returns the first
+	 * failure, or the given one.
+	 */
+	RuntimeException endShardCopies(Map<String, JDBCTableEmitter> copyEmitters, boolean commit, RuntimeException copyException) {
+		for (Map.Entry<String, JDBCTableEmitter> copyEmitter : copyEmitters.entrySet()) {
+			JDBCTableEmitter workerEmitter = copyEmitter.getValue();
+
+			try {
+				if (commit && copyException == null) {
+					workerEmitter.commitShardCopy();
+				} else {
+					workerEmitter.rollbackShardCopy();
+				}
+			} catch (RuntimeException e) {
+				if (copyException == null) {
+					copyException = e;
+				} else {
+					copyException.addSuppressed(e);
+				}
+			} finally {
+				workerEmitters.get(copyEmitter.getKey()).add(workerEmitter);
+			}
+		}
+
+		return copyException;
+	}
+
+	/*
+	 * splitBatch assigns the rows in the batch to shards, and groups the batches
+	 * of the shards by the worker on which each placement is located.
+	 */
+	Map<String, Map<String, TableRowBatch>> splitBatch(TableRowBatch tableRowBatch, CitusShardMap shardMap) {
+		TableSchema tableSchema = tableRowBatch.tableSchema;
+		TableColumn distributionColumn = tableSchema.getDistributionColumn();
+		Map<Shard, TableRowBatch> shardBatches = new LinkedHashMap<>();
+		int checkedRows = 0;
+
+		for (TableRow tableRow : tableRowBatch.getRows()) {
+			int hashValue = CitusHash.hashValue(tableRow.getValue(distributionColumn.name), distributionColumn.type);
+
+			if (!shardMap.isHashChecked() && checkedRows < HASH_CHECK_ROWS) {
+				checkHash(tableRow, distributionColumn, hashValue);
+				checkedRows++;
+			}
+
+			Shard shard = shardMap.findShard(hashValue);
+
+			if (shard == null) {
+				throw new EmissionException("no shard of table %s covers hash value %d", tableSchema.tableName, hashValue);
+			}
+
+			TableRowBatch shardBatch = shardBatches.get(shard);
+
+			if (shardBatch == null) {
+				shardBatch = new TableRowBatch(tableSchema, tableRowBatch.getColumns());
+				shardBatches.put(shard, shardBatch);
+			}
+
+			shardBatch.addRow(tableRow);
+		}
+
+		if (checkedRows > 0) {
+			shardMap.setHashChecked(true);
+		}
+
+		Map<String, Map<String, TableRowBatch>> workerBatches = new LinkedHashMap<>();
+
+		for (Map.Entry<Shard, TableRowBatch> shardBatch : shardBatches.entrySet()) {
+			Shard shard = shardBatch.getKey();
+
+			for (Placement placement : shard.placements) {
+				Map<String, TableRowBatch> placementBatches = workerBatches.get(placement.getNodeKey());
+
+				if (placementBatches == null) {
+					placementBatches = new LinkedHashMap<>();
+					workerBatches.put(placement.getNodeKey(), placementBatches);
+				}
+
+				placementBatches.put(shard.shardName, shardBatch.getValue());
+			}
+		}
+
+		return workerBatches;
+	}
+
+	/*
+	 * checkHash verifies that the hash computed on the client matches the hash
+	 * that Citus computes, to avoid copying rows into the wrong shards.
+	 */
+	void checkHash(TableRow tableRow, TableColumn distributionColumn, int hashValue) {
+		int workerHashValue = metadataEmitter.workerHash(tableRow.getValue(distributionColumn.name), distributionColumn.type);
+
+		if (hashValue != workerHashValue) {
+			throw new EmissionException("hash value %d of column %s does not match Citus hash value %d, use copy through the coordinator instead",
+					hashValue, distributionColumn.name, workerHashValue);
+		}
+	}
+
+	/*
+	 * copyToWorker copies the batches into the shards on a worker and returns
+	 * the connection, on which the transaction is still open. If the COPY
+	 * fails, the connection is returned to the idle connections.
+	 */
+	JDBCTableEmitter copyToWorker(String nodeKey, Map<String, TableRowBatch> shardBatches) throws SQLException {
+		JDBCTableEmitter workerEmitter = takeWorkerEmitter(nodeKey);
+
+		try {
+			workerEmitter.copyIntoShards(shardBatches, skipExistingRows);
+			return workerEmitter;
+		} catch (RuntimeException e) {
+			workerEmitters.get(nodeKey).add(workerEmitter);
+			throw e;
+		}
+	}
+
+	/*
+	 * takeWorkerEmitter returns an idle connection to the worker, and opens a
+	 * new one if there is none and the worker has fewer than the maximum number
+	 * of connections.
+	 */
+	JDBCTableEmitter takeWorkerEmitter(String nodeKey) throws SQLException {
+		BlockingQueue<JDBCTableEmitter> idleEmitters = workerEmitters.computeIfAbsent(nodeKey, key -> new LinkedBlockingQueue<>());
+		JDBCTableEmitter workerEmitter = idleEmitters.poll();
+
+		if (workerEmitter != null) {
+			return workerEmitter;
+		}
+
+		boolean canConnect;
+
+		synchronized (workerConnectionCounts) {
+			int connectionCount = workerConnectionCounts.getOrDefault(nodeKey, 0);
+			canConnect = connectionCount < maxConnectionsPerWorker;
+
+			if (canConnect) {
+				workerConnectionCounts.put(nodeKey, connectionCount + 1);
+			}
+		}
+
+		if (canConnect) {
+			try {
+				workerEmitter = new JDBCTableEmitter(workerURL(nodeKey));
+				allWorkerEmitters.add(workerEmitter);
+				workerEmitter.setCopyFormat(copyFormat);
+				return workerEmitter;
+			} catch (SQLException | RuntimeException e) {
+				synchronized (workerConnectionCounts) {
+					workerConnectionCounts.put(nodeKey, workerConnectionCounts.get(nodeKey) - 1);
+				}
+
+				throw e;
+			}
+		}
+
+		try {
+			return idleEmitters.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EmissionException(e);
+		}
+	}
+
+	/*
+	 * workerURL replaces the host and port in the coordinator URL by those of
+	 * the worker, keeping the database name and connection parameters.
+	 */
+	String workerURL(String nodeKey) {
+		int pathStart = coordinatorURL.indexOf('/', URL_PREFIX.length());
+		String path = pathStart >= 0 ? coordinatorURL.substring(pathStart) : "/";
+
+		int portSeparator = nodeKey.lastIndexOf(':');
+		String nodeName = nodeKey.substring(0, portSeparator);
+		String nodePort = nodeKey.substring(portSeparator + 1);
+
+		if (nodeName.contains(":")) {
+			nodeName = "[" + nodeName + "]";
+		}
+
+		return URL_PREFIX + nodeName + ":" + nodePort + path;
+	}
+
+	@Override
+	public List<ScanProgress> fetchScanProgress(String tableName) {
+		return coordinatorEmitter.fetchScanProgress(tableName);
+	}
+
+	@Override
+	public void saveScanProgress(ScanProgress scanProgress) {
+		coordinatorEmitter.saveScanProgress(scanProgress);
+	}
+
+	@Override
+	public void clearScanProgress(String tableName) {
+		coordinatorEmitter.clearScanProgress(tableName);
+	}
+
+	@Override
+	public String fetchStreamCheckpoint(String tableName, String shardId) {
+		return coordinatorEmitter.fetchStreamCheckpoint(tableName, shardId);
+	}
+
+	@Override
+	public void clearStreamCheckpoint(String tableName, String shardId) {
+		coordinatorEmitter.clearStreamCheckpoint(tableName, shardId);
+	}
+
+	@Override
+	public void upsert(TableRow tableRow) {
+		coordinatorEmitter.upsert(tableRow);
+	}
+
+	@Override
+	public void delete(PrimaryKeyValue primaryKeyValue) {
+		coordinatorEmitter.delete(primaryKeyValue);
+	}
+
+	@Override
+	public void applyModifications(List<TableModification> modifications, StreamCheckpoint checkpoint) {
+		coordinatorEmitter.applyModifications(modifications, checkpoint);
+	}
+
+	/*
+	 * close closes all connections to the workers, also those that are still
+	 * in use by a COPY, which then waits for the COPY to finish.
+	 */
+	@Override
+	public void close() {
+		copyExecutor.shutdownNow();
+
+		for (JDBCTableEmitter workerEmitter : allWorkerEmitters) {
+			try {
+				workerEmitter.close();
+			} catch (EmissionException e) {
+				LOG.warn("Could not close connection to worker", e);
+			}
+		}
+
+		allWorkerEmitters.clear();
+		workerEmitters.clear();
+
+		metadataEmitter.close();
+		coordinatorEmitter.close();
+	}
+
+}
@@ -0,0 +1,159 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.nio.charset.StandardCharsets;
+
+import com.citusdata.migration.datamodel.PostgresNumeric;
+import com.citusdata.migration.datamodel.TableColumnType;
+import com.citusdata.migration.datamodel.TableColumnValue;
+
+/*
+ * CitusHash computes the hash values that Citus uses to assign rows of a hash-
+ * distributed table to shards, which are the values of the default PostgreSQL
+ * hash function of the distribution column type. The functions follow
+ * hash_any, hashtext, hashvarlena and hash_numeric on a little-endian server
+ * with a UTF8 database encoding.
+ */
+public class CitusHash {
+
+	/*
+	 * isSupported returns whether the hash of values of the given type can be
+	 * computed on the client.
+	 */
+	public static boolean isSupported(TableColumnType columnType) {
+		switch(columnType) {
+		case text:
+		case bytea:
+		case numeric:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * hashValue returns the hash of a value as it is stored in a column of the
+	 * given type.
+	 */
+	public static int hashValue(TableColumnValue value, TableColumnType columnType) {
+		switch(columnType) {
+		case text:
+			return hashText(value.toString());
+
+		case bytea:
+			if (value.datum instanceof byte[]) {
+				return hashBytes((byte[]) value.datum);
+			} else {
+				return hashText(value.toString());
+			}
+
+		case numeric:
+			return hashNumeric(PostgresNumeric.fromString(value.toString()));
+
+		default:
+			throw new EmissionException("cannot compute the hash of values of type %s", columnType);
+		}
+	}
+
+	public static int hashText(String text) {
+		return hashBytes(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * hashNumeric hashes the base-10000 digits of the number after stripping
+	 * zeroes and mixes in the weight. Zero hashes to -1 and the sign is not
+	 * included, as in hash_numeric.
+	 */
+	public static int hashNumeric(PostgresNumeric numeric) {
+		if (numeric.digits.length == 0) {
+			return -1;
+		}
+
+		byte[] digitBytes = new byte[numeric.digits.length * 2];
+
+		for (int i = 0; i < numeric.digits.length; i++) {
+			digitBytes[2 * i] = (byte) numeric.digits[i];
+			digitBytes[2 * i + 1] = (byte) (numeric.digits[i] >> 8);
+		}
+
+		return hashBytes(digitBytes) ^ numeric.weight;
+	}
+
+	/*
+	 * hashBytes is Bob Jenkins' lookup3 hash as implemented by hash_any, reading
+	 * the key in little-endian order.
+	 */
+	public static int hashBytes(byte[] key) {
+		int length = key.length;
+		int a, b, c;
+
+		a = b = c = 0x9e3779b9 + length + 3923095;
+
+		int offset = 0;
+		int remaining = length;
+
+		while (remaining >= 12) {
+			a += readInt(key, offset);
+			b += readInt(key, offset + 4);
+			c += readInt(key, offset + 8);
+
+			/* mix(a, b, c) */
+			a -= c; a ^= Integer.rotateLeft(c, 4); c += b;
+			b -= a; b ^= Integer.rotateLeft(a, 6); a += c;
+			c -= b; c ^= Integer.rotateLeft(b, 8); b += a;
+			a -= c; a ^= Integer.rotateLeft(c, 16); c += b;
+			b -= a; b ^= Integer.rotateLeft(a, 19); a += c;
+			c -= b; c ^= Integer.rotateLeft(b, 4); b += a;
+
+			offset += 12;
+			remaining -= 12;
+		}
+
+		/* the lowest byte of c is reserved for the length */
+		switch (remaining) {
+		case 11:
+			c += (key[offset + 10] & 0xFF) << 24;
+		case 10:
+			c += (key[offset + 9] & 0xFF) << 16;
+		case 9:
+			c += (key[offset + 8] & 0xFF) << 8;
+		case 8:
+			b += (key[offset + 7] & 0xFF) << 24;
+		case 7:
+			b += (key[offset + 6] & 0xFF) << 16;
+		case 6:
+			b += (key[offset + 5] & 0xFF) << 8;
+		case 5:
+			b += key[offset + 4] & 0xFF;
+		case 4:
+			a += (key[offset + 3] & 0xFF) << 24;
+		case 3:
+			a += (key[offset + 2] & 0xFF) << 16;
+		case 2:
+			a += (key[offset + 1] & 0xFF) << 8;
+		case 1:
+			a += key[offset] & 0xFF;
+		}
+
+		/* final(a, b, c) */
+		c ^= b; c -= Integer.rotateLeft(b, 14);
+		a ^= c; a -= Integer.rotateLeft(c, 11);
+		b ^= a; b -= Integer.rotateLeft(a, 25);
+		c ^= b; c -= Integer.rotateLeft(b, 16);
+		a ^= c; a -= Integer.rotateLeft(c, 4);
+		b ^= a; b -= Integer.rotateLeft(a, 14);
+		c ^= b; c -= Integer.rotateLeft(b, 24);
+
+		return c;
+	}
+
+	static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF)
+				| (bytes[offset + 1] & 0xFF) << 8
+				| (bytes[offset + 2] & 0xFF) << 16
+				| (bytes[offset + 3] & 0xFF) << 24;
+	}
+
+}
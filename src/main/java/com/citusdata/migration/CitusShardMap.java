@@ -0,0 +1,146 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * CitusShardMap describes the shards of a hash-distributed table, ordered by
+ * the start of their hash range, and the active placements of each shard.
+ */
+public class CitusShardMap {
+
+	public final String tableName;
+	final List<Shard> shards;
+
+	/* whether hash values computed on the client were checked against Citus */
+	volatile boolean hashChecked;
+
+	public CitusShardMap(String tableName) {
+		this.tableName = tableName;
+		this.shards = new ArrayList<>();
+		this.hashChecked = false;
+	}
+
+	/*
+	 * addPlacement adds a placement of a shard, shards need to be added in
+	 * order of their hash range.
+	 */
+	public void addPlacement(long shardId, String shardName, int minValue, int maxValue, String nodeName, int nodePort) {
+		Shard shard = shards.isEmpty() ? null : shards.get(shards.size() - 1);
+
+		if (shard == null || shard.shardId != shardId) {
+			shard = new Shard(shardId, shardName, minValue, maxValue);
+			shards.add(shard);
+		}
+
+		shard.placements.add(new Placement(nodeName, nodePort));
+	}
+
+	public List<Shard> getShards() {
+		return shards;
+	}
+
+	public boolean isHashChecked() {
+		return hashChecked;
+	}
+
+	public void setHashChecked(boolean hashChecked) {
+		this.hashChecked = hashChecked;
+	}
+
+	public boolean isEmpty() {
+		return shards.isEmpty();
+	}
+
+	/*
+	 * hasSamePlacements returns whether the other shard map has the same
+	 * shards, with the same hash ranges, placed on the same nodes.
+	 */
+	public boolean hasSamePlacements(CitusShardMap other) {
+		if (shards.size() != other.shards.size()) {
+			return false;
+		}
+
+		for (int shardIndex = 0; shardIndex < shards.size(); shardIndex++) {
+			Shard shard = shards.get(shardIndex);
+			Shard otherShard = other.shards.get(shardIndex);
+
+			if (shard.shardId != otherShard.shardId ||
+					shard.minValue != otherShard.minValue ||
+					shard.maxValue != otherShard.maxValue ||
+					shard.placements.size() != otherShard.placements.size()) {
+				return false;
+			}
+
+			for (int placementIndex = 0; placementIndex < shard.placements.size(); placementIndex++) {
+				String nodeKey = shard.placements.get(placementIndex).getNodeKey();
+
+				if (!nodeKey.equals(otherShard.placements.get(placementIndex).getNodeKey())) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * findShard returns the shard whose hash range contains the given hash
+	 * value, or null if there is none.
+	 */
+	public Shard findShard(int hashValue) {
+		int low = 0;
+		int high = shards.size() - 1;
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			Shard shard = shards.get(middle);
+
+			if (hashValue < shard.minValue) {
+				high = middle - 1;
+			} else if (hashValue > shard.maxValue) {
+				low = middle + 1;
+			} else {
+				return shard;
+			}
+		}
+
+		return null;
+	}
+
+	public static class Shard {
+
+		public final long shardId;
+		public final String shardName;
+		public final int minValue;
+		public final int maxValue;
+		public final List<Placement> placements;
+
+		Shard(long shardId, String shardName, int minValue, int maxValue) {
+			this.shardId = shardId;
+			this.shardName = shardName;
+			this.minValue = minValue;
+			this.maxValue = maxValue;
+			this.placements = new ArrayList<>();
+		}
+	}
+
+	public static class Placement {
+
+		public final String nodeName;
+		public final int nodePort;
+
+		Placement(String nodeName, int nodePort) {
+			this.nodeName = nodeName;
+			this.nodePort = nodePort;
+		}
+
+		public String getNodeKey() {
+			return nodeName + ":" + nodePort;
+		}
+	}
+
+}
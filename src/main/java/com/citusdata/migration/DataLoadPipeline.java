@@ -0,0 +1,429 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.citusdata.migration.datamodel.ScanProgress;
+import com.citusdata.migration.datamodel.TableRowBatch;
+
+/*
+ * DataLoadPipeline performs the initial data load of a table in three stages
+ * that run concurrently: scanning pages from DynamoDB (one scanner per
+ * segment), converting the pages into row batches, and copying the batches
+ * into the destination. The stages are connected by bounded queues, such that
+ * the next pages are fetched while the current batch is being copied and a
+ * slow stage applies back-pressure to the stages before it.
+ *
+ * Instead of scanning the table, the pipeline can also read the items from
+ * the files of a DynamoDB export, using several readers that each read one
+ * file at a time.
+ *
+ * Optionally, pages are first written to a spool on local disk by the page
+ * sources and read back by a separate stage, such that the scan continues at
+ * full speed while the destination is slow, up to the size of the spool.
+ *
+ * Batches are copied by several writers that each have their own queue. All
+ * batches of a segment go to the same writer, such that they are copied in
+ * scan order and the stored scan progress never skips a batch.
+ */
+public class DataLoadPipeline {
+
+	private static final Log LOG = LogFactory.getLog(DataLoadPipeline.class);
+
+	/* number of items from an export file to convert into a single batch */
+	static final int EXPORT_PAGE_SIZE = 1000;
+
+	final DynamoDBTableReplicator replicator;
+	final int queueCapacity;
+	final int maxCopyWriters;
+
+	final BlockingQueue<ScanPage> pageQueue;
+	final List<BlockingQueue<TableRowBatch>> batchQueues;
+	final TableRowBatch endOfBatches;
+	final AtomicInteger activeScanners;
+
+	int totalSegments;
+	boolean trackScanProgress;
+
+	Path spoolDirectory;
+	long maxSpoolBytes;
+	PageSpool pageSpool;
+
+	public DataLoadPipeline(DynamoDBTableReplicator replicator, int queueCapacity, int maxCopyWriters) {
+		this.replicator = replicator;
+		this.queueCapacity = queueCapacity;
+		this.maxCopyWriters = maxCopyWriters;
+		this.pageQueue = new ArrayBlockingQueue<>(queueCapacity);
+		this.batchQueues = new ArrayList<>();
+		this.endOfBatches = new TableRowBatch(replicator.tableSchema);
+		this.activeScanners = new AtomicInteger();
+		this.trackScanProgress = true;
+		this.spoolDirectory = null;
+		this.maxSpoolBytes = 0;
+		this.pageSpool = null;
+	}
+
+	/*
+	 * setSpool makes the page sources write pages to a spool in the given
+	 * directory that uses at most maxSpoolBytes of disk space.
+	 */
+	public void setSpool(Path spoolDirectory, long maxSpoolBytes) {
+		this.spoolDirectory = spoolDirectory;
+		this.maxSpoolBytes = maxSpoolBytes;
+	}
+
+	/*
+	 * run scans the table in the given number of segments and returns the number
+	 * of rows that were copied into the destination once all stages are done. If
+	 * any of the stages fails, the others are cancelled. Segments for which there
+	 * is previous scan progress continue where they left off.
+	 */
+	public long run(final int totalSegments, final ReadCapacityGovernor governor, List<ScanProgress> previousProgress) throws InterruptedException, ExecutionException, IOException {
+		Map<Integer,Map<String,AttributeValue>> startKeys = new HashMap<>();
+		List<Callable<Long>> sources = new ArrayList<>();
+
+		this.totalSegments = totalSegments;
+		this.trackScanProgress = true;
+
+		for (int segment = 0; segment < totalSegments; segment++) {
+			startKeys.put(segment, null);
+		}
+
+		for (ScanProgress scanProgress : previousProgress) {
+			if (scanProgress.completed) {
+				startKeys.remove(scanProgress.segment);
+			} else if (scanProgress.lastEvaluatedKey != null) {
+				startKeys.put(scanProgress.segment, DynamoJson.fromJson(scanProgress.lastEvaluatedKey));
+			}
+		}
+
+		for (Map.Entry<Integer,Map<String,AttributeValue>> startKey : startKeys.entrySet()) {
+			final int scanSegment = startKey.getKey();
+			final Map<String,AttributeValue> exclusiveStartKey = startKey.getValue();
+
+			sources.add(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return scanSegment(scanSegment, totalSegments, exclusiveStartKey, governor);
+				}
+			});
+		}
+
+		return runStages(sources);
+	}
+
+	/*
+	 * runExport reads the items from the files of a DynamoDB export instead of
+	 * scanning the table, with each reader reading one file at a time. Scan
+	 * progress is not stored, since it does not apply to export files.
+	 */
+	public long runExport(List<Path> exportFiles, int numReaders) throws InterruptedException, ExecutionException, IOException {
+		final BlockingQueue<Path> fileQueue = new LinkedBlockingQueue<>(exportFiles);
+		List<Callable<Long>> sources = new ArrayList<>();
+
+		this.totalSegments = Math.max(1, Math.min(numReaders, exportFiles.size()));
+		this.trackScanProgress = false;
+
+		for (int reader = 0; reader < totalSegments; reader++) {
+			final int readerSegment = reader;
+
+			sources.add(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return readExportFiles(readerSegment, fileQueue);
+				}
+			});
+		}
+
+		return runStages(sources);
+	}
+
+	/*
+	 * runStages runs the given page sources along with the convert and copy
+	 * stages, and returns the number of rows copied.
+	 */
+	long runStages(List<Callable<Long>> sources) throws InterruptedException, ExecutionException, IOException {
+		CompletionService<Long> completionService = new ExecutorCompletionService<>(replicator.executor);
+		List<Future<Long>> futures = new ArrayList<>();
+
+		if (spoolDirectory != null) {
+			pageSpool = new PageSpool(spoolDirectory, replicator.dynamoTableName, maxSpoolBytes);
+		}
+
+		activeScanners.set(sources.size());
+
+		if (sources.isEmpty()) {
+			putPage(ScanPage.END);
+		}
+
+		for (Callable<Long> source : sources) {
+			futures.add(completionService.submit(source));
+		}
+
+		if (pageSpool != null) {
+			futures.add(completionService.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return unspoolPages();
+				}
+			}));
+		}
+
+		futures.add(completionService.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return convertPages();
+			}
+		}));
+
+		/* there is no use in having more writers than segments */
+		int numCopyWriters = Math.max(1, Math.min(totalSegments, maxCopyWriters));
+		List<Future<Long>> copyFutures = new ArrayList<>();
+
+		for (int writer = 0; writer < numCopyWriters; writer++) {
+			final BlockingQueue<TableRowBatch> batchQueue = new ArrayBlockingQueue<>(queueCapacity);
+			batchQueues.add(batchQueue);
+
+			copyFutures.add(completionService.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return copyBatches(batchQueue);
+				}
+			}));
+		}
+
+		futures.addAll(copyFutures);
+
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				completionService.take().get();
+			}
+		} finally {
+			for (Future<Long> future : futures) {
+				future.cancel(true);
+			}
+
+			if (pageSpool != null) {
+				pageSpool.close();
+			}
+		}
+
+		long numRowsReplicated = 0;
+
+		for (Future<Long> copyFuture : copyFutures) {
+			numRowsReplicated += copyFuture.get();
+		}
+
+		return numRowsReplicated;
+	}
+
+	long scanSegment(int segment, int totalSegments, Map<String,AttributeValue> exclusiveStartKey, ReadCapacityGovernor governor) throws InterruptedException, IOException {
+		Map<String,AttributeValue> lastEvaluatedScanKey = exclusiveStartKey;
+		long numItemsScanned = 0;
+
+		ReadCapacityGovernor.ScanShare scanShare = governor.startScan(replicator.dynamoTableName);
+
+		try {
+			/* target pages that cost about one second worth of this segment's share of the scan rate */
+			ScanPageSizer pageSizer = ScanPageSizer.forScanRate(scanShare.getRate(), replicator.consistentScan);
+
+			do {
+				int limit = replicator.scanPageLimit > 0 ? replicator.scanPageLimit : pageSizer.getLimit();
+
+				/* the page reflects at least all changes made before it was requested */
+				long readTimeMillis = System.currentTimeMillis();
+				ScanResult scanResult = replicator.scanWithRetries(segment, totalSegments, lastEvaluatedScanKey, limit);
+				lastEvaluatedScanKey = scanResult.getLastEvaluatedKey();
+
+				pageSizer.setScanRate(scanShare.getRate());
+				pageSizer.update(scanResult.getCount(), scanResult.getConsumedCapacity().getCapacityUnits());
+
+				putPage(new ScanPage(segment, scanResult.getItems(), lastEvaluatedScanKey, readTimeMillis));
+				numItemsScanned += scanResult.getCount();
+
+				if (lastEvaluatedScanKey != null) {
+					// Account for the rest of the throughput we consumed, 
+					// now that we know how much that scan request cost 
+					double consumedCapacity = scanResult.getConsumedCapacity().getCapacityUnits();
+					int permitsToConsume = (int)(consumedCapacity - 1.0);
+					if (permitsToConsume <= 0) {
+						permitsToConsume = 1;
+					}
+
+					// Let the rate limiter wait until our desired throughput "recharges"
+					scanShare.acquire(permitsToConsume);
+				}
+			} while (lastEvaluatedScanKey != null);
+		} finally {
+			/* give our share of the read capacity to the other scans */
+			scanShare.finish();
+		}
+
+		finishSource();
+
+		return numItemsScanned;
+	}
+
+	/*
+	 * readExportFiles reads pages of items from export files until there are no
+	 * more files left to read.
+	 */
+	long readExportFiles(int segment, BlockingQueue<Path> fileQueue) throws InterruptedException, IOException {
+		long numItemsRead = 0;
+		Path exportFile;
+
+		while ((exportFile = fileQueue.poll()) != null) {
+			try (DynamoExportReader exportReader = new DynamoExportReader(exportFile)) {
+				List<Map<String,AttributeValue>> items;
+
+				while (!(items = exportReader.readItems(EXPORT_PAGE_SIZE)).isEmpty()) {
+					putPage(new ScanPage(segment, items, null));
+					numItemsRead += items.size();
+				}
+			}
+
+			LOG.info(String.format("Read export file %s for table %s", exportFile, replicator.dynamoTableName));
+		}
+
+		finishSource();
+
+		return numItemsRead;
+	}
+
+	/*
+	 * finishSource marks the end of the pages once the last source is done.
+	 */
+	void finishSource() throws InterruptedException, IOException {
+		if (activeScanners.decrementAndGet() == 0) {
+			putPage(ScanPage.END);
+		}
+	}
+
+	/*
+	 * putPage passes a page from a source to the convert stage, via the spool
+	 * if there is one.
+	 */
+	void putPage(ScanPage page) throws InterruptedException, IOException {
+		if (pageSpool != null) {
+			pageSpool.put(page);
+		} else {
+			pageQueue.put(page);
+		}
+	}
+
+	/*
+	 * unspoolPages moves pages from the spool to the convert stage until the
+	 * end of the pages.
+	 */
+	long unspoolPages() throws InterruptedException, IOException {
+		long numPagesUnspooled = 0;
+
+		while (true) {
+			ScanPage page = pageSpool.take();
+			pageQueue.put(page);
+
+			if (page == ScanPage.END) {
+				return numPagesUnspooled;
+			}
+
+			numPagesUnspooled++;
+		}
+	}
+
+	long convertPages() throws InterruptedException {
+		long numPagesConverted = 0;
+
+		while (true) {
+			ScanPage page = pageQueue.take();
+
+			if (page == ScanPage.END) {
+				for (BlockingQueue<TableRowBatch> batchQueue : batchQueues) {
+					batchQueue.put(endOfBatches);
+				}
+
+				return numPagesConverted;
+			}
+
+			TableRowBatch tableRowBatch = replicator.rowBatchFromDynamoItems(page.items, page.readTimeMillis);
+
+			if (trackScanProgress) {
+				tableRowBatch.setScanProgress(scanProgressAfter(page));
+			}
+
+			batchQueues.get(page.segment % batchQueues.size()).put(tableRowBatch);
+			numPagesConverted++;
+		}
+	}
+
+	int copyQueueSize() {
+		int size = 0;
+
+		for (BlockingQueue<TableRowBatch> batchQueue : batchQueues) {
+			size += batchQueue.size();
+		}
+
+		return size;
+	}
+
+	/*
+	 * scanProgressAfter returns the progress of the segment once the page has
+	 * been copied, such that it can be stored in the same transaction.
+	 */
+	ScanProgress scanProgressAfter(ScanPage page) {
+		String tableName = replicator.dynamoTableName;
+
+		if (page.lastEvaluatedKey == null) {
+			return new ScanProgress(tableName, page.segment, totalSegments, null, true);
+		} else {
+			return new ScanProgress(tableName, page.segment, totalSegments, DynamoJson.toJson(page.lastEvaluatedKey), false);
+		}
+	}
+
+	long copyBatches(BlockingQueue<TableRowBatch> batchQueue) throws InterruptedException {
+		long numRowsReplicated = 0;
+
+		while (true) {
+			TableRowBatch tableRowBatch = batchQueue.take();
+
+			if (tableRowBatch == endOfBatches) {
+				return numRowsReplicated;
+			}
+
+			/* load the batch using COPY */
+			replicator.emitter.copyFromBatch(tableRowBatch);
+			numRowsReplicated += tableRowBatch.size();
+
+			if (pageSpool != null) {
+				LOG.info(String.format("Replicated %d rows to table %s (spool: %d pages, scan queue: %d/%d, copy queues: %d/%d)",
+						tableRowBatch.size(), tableRowBatch.tableSchema.tableName, pageSpool.size(),
+						pageQueue.size(), queueCapacity, copyQueueSize(), queueCapacity * batchQueues.size()));
+			} else {
+				LOG.info(String.format("Replicated %d rows to table %s (scan queue: %d/%d, copy queues: %d/%d)",
+						tableRowBatch.size(), tableRowBatch.tableSchema.tableName,
+						pageQueue.size(), queueCapacity, copyQueueSize(), queueCapacity * batchQueues.size()));
+			}
+		}
+	}
+
+}
@@ -4,10 +4,15 @@
 package com.citusdata.migration;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -30,6 +35,7 @@ import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreamsClientBuilder;
 import com.amazonaws.services.dynamodbv2.model.ListTablesResult;
+import com.citusdata.migration.datamodel.CopyFormat;
 import com.citusdata.migration.datamodel.NonExistingTableException;
 import com.citusdata.migration.datamodel.TableEmitter;
 import com.citusdata.migration.datamodel.TableExistsException;
@@ -69,14 +75,38 @@ public class DynamoDBReplicator {
 		noChangesOption.setRequired(false);
 		options.addOption(noChangesOption);
 
+		Option resumeOption = new Option("rs", "resume", false, "Resume an interrupted data load from the last copied batch");
+		resumeOption.setRequired(false);
+		options.addOption(resumeOption);
+
 		Option citusOption = new Option("x", "citus", false, "Create distributed tables using Citus");
 		citusOption.setRequired(false);
 		options.addOption(citusOption);
 
+		Option citusDirectCopyOption = new Option("xd", "citus-direct-copy", false, "Load data directly into the shards on the Citus workers, bypassing the coordinator");
+		citusDirectCopyOption.setRequired(false);
+		options.addOption(citusDirectCopyOption);
+
 		Option conversionModeOption = new Option("m", "conversion-mode", true, "Conversion mode, either columns or jsonb (default: columns)");
 		conversionModeOption.setRequired(false);
 		options.addOption(conversionModeOption);
 
+		Option copyFormatOption = new Option("cf", "copy-format", true, "COPY format for the data load, either text or binary (default: text)");
+		copyFormatOption.setRequired(false);
+		options.addOption(copyFormatOption);
+
+		Option fastLoadOption = new Option("fl", "fast-load", false, "Create tables as UNLOGGED during the initial data load and make them logged afterwards");
+		fastLoadOption.setRequired(false);
+		options.addOption(fastLoadOption);
+
+		Option deferIndexesOption = new Option("di", "defer-indexes", false, "Create secondary indexes in parallel after the data load instead of before");
+		deferIndexesOption.setRequired(false);
+		options.addOption(deferIndexesOption);
+
+		Option maintenanceWorkMemOption = new Option("mw", "maintenance-work-mem", true, "maintenance_work_mem for building deferred indexes, e.g. 1GB (default: server setting)");
+		maintenanceWorkMemOption.setRequired(false);
+		options.addOption(maintenanceWorkMemOption);
+
 		Option lowerCaseColumnsOption = new Option("lc", "lower-case-column-names", false, "Use lower case column names");
 		lowerCaseColumnsOption.setRequired(false);
 		options.addOption(lowerCaseColumnsOption);
@@ -89,6 +119,94 @@ public class DynamoDBReplicator {
 		maxScanRateOption.setRequired(false);
 		options.addOption(maxScanRateOption);
 
+		Option totalScanRateOption = new Option("tr", "total-scan-rate", true, "Maximum reads/sec during scan across all tables, instead of per table");
+		totalScanRateOption.setRequired(false);
+		options.addOption(totalScanRateOption);
+
+		Option scanWeightsOption = new Option("sw", "scan-weights", true, "Share of the total scan rate per table, e.g. orders=3,clicks=1 (default: 1 per table)");
+		scanWeightsOption.setRequired(false);
+		options.addOption(scanWeightsOption);
+
+		Option scanSegmentsOption = new Option("sg", "scan-segments", true, "Number of parallel scan segments per table (default: 1 per 2GB)");
+		scanSegmentsOption.setRequired(false);
+		options.addOption(scanSegmentsOption);
+
+		Option scanPageLimitOption = new Option("pl", "scan-page-limit", true, "Maximum items per scan request, or auto to tune it to the item size (default: auto)");
+		scanPageLimitOption.setRequired(false);
+		options.addOption(scanPageLimitOption);
+
+		Option eventuallyConsistentScanOption = new Option("ec", "eventually-consistent-scan", false, "Use eventually consistent reads during scan");
+		eventuallyConsistentScanOption.setRequired(false);
+		options.addOption(eventuallyConsistentScanOption);
+
+		Option exportDirectoryOption = new Option("ed", "export-directory", true, "Load data from the DynamoDB JSON files of a table export in the given directory instead of scanning the table");
+		exportDirectoryOption.setRequired(false);
+		options.addOption(exportDirectoryOption);
+
+		Option exportReadersOption = new Option("er", "export-readers", true, "Number of export files to read in parallel (default 4)");
+		exportReadersOption.setRequired(false);
+		options.addOption(exportReadersOption);
+
+		Option schemaSampleSizeOption = new Option("ss", "schema-sample-size", true, "Number of items to sample to find all columns before creating a table (default: 0, no sampling)");
+		schemaSampleSizeOption.setRequired(false);
+		options.addOption(schemaSampleSizeOption);
+
+		Option schemaSampleSegmentsOption = new Option("sn", "schema-sample-segments", true, "Number of parallel scan segments to sample from (default 8)");
+		schemaSampleSegmentsOption.setRequired(false);
+		options.addOption(schemaSampleSegmentsOption);
+
+		Option pipelineDepthOption = new Option("pd", "pipeline-depth", true, "Number of pages buffered between the scan, convert and copy stages (default 4)");
+		pipelineDepthOption.setRequired(false);
+		options.addOption(pipelineDepthOption);
+
+		Option spoolDirectoryOption = new Option("sd", "spool-directory", true, "Buffer scanned pages in spool files in the given directory, such that a slow destination does not slow down the scan");
+		spoolDirectoryOption.setRequired(false);
+		options.addOption(spoolDirectoryOption);
+
+		Option spoolSizeOption = new Option("sz", "spool-size", true, "Maximum disk space used by the spool of each table in MB (default 1024)");
+		spoolSizeOption.setRequired(false);
+		options.addOption(spoolSizeOption);
+
+		Option batchRowsOption = new Option("br", "batch-rows", true, "Maximum number of rows per upsert or delete command when replicating changes (default 100)");
+		batchRowsOption.setRequired(false);
+		options.addOption(batchRowsOption);
+
+		Option mergeChangesOption = new Option("mc", "merge-changes", false, "Apply each batch of changes by copying it into staging tables and merging it into the table in one transaction");
+		mergeChangesOption.setRequired(false);
+		options.addOption(mergeChangesOption);
+
+		Option transactionalChangesOption = new Option("tc", "transactional-changes", false, "Apply each batch of changes in one transaction per connection");
+		transactionalChangesOption.setRequired(false);
+		options.addOption(transactionalChangesOption);
+
+		Option transactionSizeOption = new Option("ts", "transaction-size", true, "Maximum number of changes per transaction when using --transactional-changes or --merge-changes (default 10000)");
+		transactionSizeOption.setRequired(false);
+		options.addOption(transactionSizeOption);
+
+		Option checkpointIntervalOption = new Option("ci", "checkpoint-interval", true, "Checkpoint each stream shard at most once per given number of seconds when replicating changes (default 0: every batch)");
+		checkpointIntervalOption.setRequired(false);
+		options.addOption(checkpointIntervalOption);
+
+		Option checkpointRecordsOption = new Option("cr", "checkpoint-records", true, "Checkpoint each stream shard after the given number of records when replicating changes (default 0: every batch)");
+		checkpointRecordsOption.setRequired(false);
+		options.addOption(checkpointRecordsOption);
+
+		Option postgresCheckpointsOption = new Option("pc", "postgres-checkpoints", false, "Store the position in each stream shard in postgres along with the changes, and skip changes that were already applied after a restart");
+		postgresCheckpointsOption.setRequired(false);
+		options.addOption(postgresCheckpointsOption);
+
+		Option sequenceGuardOption = new Option("sq", "sequence-guard", false, "Add hidden columns with the stream position of the last change to each row, skip older changes and keep deleted rows as tombstones");
+		sequenceGuardOption.setRequired(false);
+		options.addOption(sequenceGuardOption);
+
+		Option shardRoutingOption = new Option("sr", "shard-routing", false, "Route writes to distributed tables by Citus shard, such that each connection writes to a fixed set of shards");
+		shardRoutingOption.setRequired(false);
+		options.addOption(shardRoutingOption);
+
+		Option ddlLockTimeoutOption = new Option("lt", "ddl-lock-timeout", true, "Add columns on a separate connection that gives up waiting for the table lock after this many milliseconds and retries, such that other writes continue (default 1000, 0 blocks all writes while adding a column)");
+		ddlLockTimeoutOption.setRequired(false);
+		options.addOption(ddlLockTimeoutOption);
+
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.setWidth(120);
@@ -106,13 +224,201 @@ public class DynamoDBReplicator {
 				return;
 			}
 
+			boolean resumeData = cmd.hasOption("resume");
+
+			if (resumeData && !replicateData) {
+				throw new ParseException("--resume can only be used with --data");
+			}
+
 			boolean useCitus = cmd.hasOption("citus");
+			boolean useCitusDirectCopy = cmd.hasOption("citus-direct-copy");
+			boolean useFastLoad = cmd.hasOption("fast-load");
+			boolean deferIndexes = cmd.hasOption("defer-indexes");
+			String maintenanceWorkMem = cmd.getOptionValue("maintenance-work-mem");
 			boolean useLowerCaseColumnNames = cmd.hasOption("lower-case-column-names");
 			int maxScanRate = Integer.parseInt(cmd.getOptionValue("scan-rate", "25"));
+			String totalScanRateString = cmd.getOptionValue("total-scan-rate");
+			String scanWeightsString = cmd.getOptionValue("scan-weights");
+			int scanSegments = Integer.parseInt(cmd.getOptionValue("scan-segments", "0"));
+			int pipelineDepth = Integer.parseInt(cmd.getOptionValue("pipeline-depth", "4"));
+			String exportDirectoryString = cmd.getOptionValue("export-directory");
+			int exportReaders = Integer.parseInt(cmd.getOptionValue("export-readers", "4"));
+			String spoolDirectoryString = cmd.getOptionValue("spool-directory");
+			long spoolSizeMB = Long.parseLong(cmd.getOptionValue("spool-size", "1024"));
+			int schemaSampleSize = Integer.parseInt(cmd.getOptionValue("schema-sample-size", "0"));
+			int schemaSampleSegments = Integer.parseInt(cmd.getOptionValue("schema-sample-segments", "8"));
+			String scanPageLimitString = cmd.getOptionValue("scan-page-limit", "auto");
+			boolean useConsistentScan = !cmd.hasOption("eventually-consistent-scan");
+			boolean mergeChanges = cmd.hasOption("merge-changes");
+			int maxBatchRows = Integer.parseInt(cmd.getOptionValue("batch-rows", "100"));
+			boolean transactionalChanges = cmd.hasOption("transactional-changes");
+			int maxTransactionSize = Integer.parseInt(cmd.getOptionValue("transaction-size", "10000"));
+			long checkpointIntervalSeconds = Long.parseLong(cmd.getOptionValue("checkpoint-interval", "0"));
+			long checkpointRecords = Long.parseLong(cmd.getOptionValue("checkpoint-records", "0"));
+			boolean postgresCheckpoints = cmd.hasOption("postgres-checkpoints");
+			boolean sequenceGuard = cmd.hasOption("sequence-guard");
+			boolean shardRouting = cmd.hasOption("shard-routing");
+			int ddlLockTimeoutMillis = Integer.parseInt(cmd.getOptionValue("ddl-lock-timeout", "1000"));
 			int dbConnectionCount = Integer.parseInt(cmd.getOptionValue("num-connections", "16"));
 			String tableNamesString = cmd.getOptionValue("table");
 			String postgresURL = cmd.getOptionValue("postgres-jdbc-url");
 			String conversionModeString = cmd.getOptionValue("conversion-mode", ConversionMode.columns.name());
+			String copyFormatString = cmd.getOptionValue("copy-format", CopyFormat.text.name());
+
+			if (useCitusDirectCopy && (!replicateData || postgresURL == null)) {
+				throw new ParseException("--citus-direct-copy can only be used with --data and --postgres-jdbc-url");
+			}
+
+			if (useFastLoad && (!replicateSchema || !replicateData)) {
+				throw new ParseException("--fast-load can only be used with --schema and --data");
+			}
+
+			if (useFastLoad && useCitus) {
+				throw new ParseException("--fast-load cannot be used with --citus");
+			}
+
+			if (deferIndexes && !replicateData) {
+				throw new ParseException("--defer-indexes can only be used with --data");
+			}
+
+			if (maintenanceWorkMem != null && !deferIndexes) {
+				throw new ParseException("--maintenance-work-mem can only be used with --defer-indexes");
+			}
+
+			if (maintenanceWorkMem != null && !maintenanceWorkMem.matches("[0-9]+ *(kB|MB|GB|TB)?")) {
+				throw new ParseException("invalid maintenance_work_mem: " + maintenanceWorkMem);
+			}
+
+			Path exportDirectory = null;
+
+			if (exportDirectoryString != null) {
+				exportDirectory = Paths.get(exportDirectoryString);
+
+				if (!replicateData || resumeData) {
+					throw new ParseException("--export-directory can only be used with --data and without --resume");
+				}
+
+				if (tableNamesString == null || tableNamesString.contains(",")) {
+					throw new ParseException("--export-directory requires a single table name in --table");
+				}
+
+				if (!Files.isDirectory(exportDirectory)) {
+					throw new ParseException("export directory does not exist: " + exportDirectoryString);
+				}
+
+				if (exportReaders < 1) {
+					throw new ParseException("export readers must be at least 1");
+				}
+			}
+
+			Path spoolDirectory = null;
+
+			if (spoolDirectoryString != null) {
+				spoolDirectory = Paths.get(spoolDirectoryString);
+
+				if (!replicateData) {
+					throw new ParseException("--spool-directory can only be used with --data");
+				}
+
+				if (!Files.isDirectory(spoolDirectory)) {
+					throw new ParseException("spool directory does not exist: " + spoolDirectoryString);
+				}
+
+				if (spoolSizeMB < 2) {
+					throw new ParseException("spool size must be at least 2 MB");
+				}
+			}
+
+			if (schemaSampleSize > 0 && !replicateSchema) {
+				throw new ParseException("--schema-sample-size can only be used with --schema");
+			}
+
+			if (schemaSampleSize < 0 || schemaSampleSegments < 1) {
+				throw new ParseException("schema sample size must be at least 0 and sample segments at least 1");
+			}
+
+			if (mergeChanges && (!replicateChanges || postgresURL == null)) {
+				throw new ParseException("--merge-changes can only be used with --changes and --postgres-jdbc-url");
+			}
+
+			if (maxBatchRows < 1) {
+				throw new ParseException("batch rows must be at least 1");
+			}
+
+			if (transactionalChanges && (!replicateChanges || postgresURL == null)) {
+				throw new ParseException("--transactional-changes can only be used with --changes and --postgres-jdbc-url");
+			}
+
+			if (maxTransactionSize < 1) {
+				throw new ParseException("transaction size must be at least 1");
+			}
+
+			if (ddlLockTimeoutMillis < 0) {
+				throw new ParseException("DDL lock timeout cannot be negative");
+			}
+
+			if ((checkpointIntervalSeconds > 0 || checkpointRecords > 0) && !replicateChanges) {
+				throw new ParseException("--checkpoint-interval and --checkpoint-records can only be used with --changes");
+			}
+
+			if (checkpointIntervalSeconds < 0 || checkpointRecords < 0) {
+				throw new ParseException("checkpoint interval and records must be at least 0");
+			}
+
+			if (postgresCheckpoints && (!replicateChanges || postgresURL == null)) {
+				throw new ParseException("--postgres-checkpoints can only be used with --changes and --postgres-jdbc-url");
+			}
+
+			if (sequenceGuard && postgresURL == null) {
+				throw new ParseException("--sequence-guard can only be used with --postgres-jdbc-url");
+			}
+
+			if (shardRouting && postgresURL == null) {
+				throw new ParseException("--shard-routing can only be used with --postgres-jdbc-url");
+			}
+
+			if (postgresCheckpoints && checkpointIntervalSeconds == 0 && checkpointRecords == 0) {
+				/* DynamoDB checkpoints now only limit how much of the stream is read again */
+				checkpointIntervalSeconds = 300;
+			}
+
+			CheckpointPolicy checkpointPolicy = new CheckpointPolicy(checkpointIntervalSeconds * 1000, checkpointRecords);
+
+			if (pipelineDepth < 1) {
+				throw new ParseException("pipeline depth must be at least 1");
+			}
+
+			int scanPageLimit = 0;
+
+			if (!"auto".equals(scanPageLimitString)) {
+				scanPageLimit = Integer.parseInt(scanPageLimitString);
+
+				if (scanPageLimit < 1) {
+					throw new ParseException("scan page limit must be at least 1");
+				}
+			}
+
+			Map<String,Double> scanWeights = new HashMap<>();
+
+			if (scanWeightsString != null) {
+				if (totalScanRateString == null) {
+					throw new ParseException("--scan-weights can only be used with --total-scan-rate");
+				}
+
+				for (String scanWeightString : scanWeightsString.split(",")) {
+					String[] tableAndWeight = scanWeightString.split("=");
+
+					if (tableAndWeight.length != 2) {
+						throw new ParseException("invalid scan weight: " + scanWeightString);
+					}
+
+					try {
+						scanWeights.put(tableAndWeight[0], Double.parseDouble(tableAndWeight[1]));
+					} catch (NumberFormatException e) {
+						throw new ParseException("invalid scan weight: " + scanWeightString);
+					}
+				}
+			}
 
 			ConversionMode conversionMode;
 
@@ -122,6 +428,14 @@ public class DynamoDBReplicator {
 				throw new ParseException("invalid conversion mode: " + conversionModeString);
 			}
 
+			CopyFormat copyFormat;
+
+			try {
+				copyFormat = CopyFormat.valueOf(copyFormatString);
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("invalid copy format: " + copyFormatString);
+			}
+
 			AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
 
 			AmazonDynamoDB dynamoDBClient = AmazonDynamoDBClientBuilder.standard().
@@ -138,10 +452,51 @@ public class DynamoDBReplicator {
 				List<TableEmitter> emitters = new ArrayList<>();
 
 				for(int i = 0; i < dbConnectionCount; i++) {
-					emitters.add(new JDBCTableEmitter(postgresURL));
+					JDBCTableEmitter jdbcEmitter = new JDBCTableEmitter(postgresURL);
+					jdbcEmitter.setCopyFormat(copyFormat);
+					jdbcEmitter.setMaintenanceWorkMem(maintenanceWorkMem);
+					jdbcEmitter.setMaxBatchRows(maxBatchRows);
+					jdbcEmitter.setMergeModifications(mergeChanges);
+					jdbcEmitter.setTransactionalModifications(transactionalChanges);
+					jdbcEmitter.setMaxTransactionSize(maxTransactionSize);
+					jdbcEmitter.setStreamCheckpointWriters(dbConnectionCount);
+					emitters.add(jdbcEmitter);
 				}
 
-				emitter = new HashedMultiEmitter(emitters);
+				HashedMultiEmitter multiEmitter = new HashedMultiEmitter(emitters);
+
+				if (shardRouting) {
+					JDBCTableEmitter shardRoutingEmitter = new JDBCTableEmitter(postgresURL);
+
+					if (!shardRoutingEmitter.hasCitus()) {
+						shardRoutingEmitter.close();
+						throw new ParseException("--shard-routing can only be used with a Citus coordinator");
+					}
+
+					multiEmitter.setShardRouting(shardRoutingEmitter);
+				}
+
+				if (postgresCheckpoints) {
+					JDBCTableEmitter streamCheckpointEmitter = new JDBCTableEmitter(postgresURL);
+					streamCheckpointEmitter.setStreamCheckpointWriters(dbConnectionCount);
+					streamCheckpointEmitter.createStreamCheckpointsTable();
+					multiEmitter.setStreamCheckpointEmitter(streamCheckpointEmitter);
+				}
+
+				if (ddlLockTimeoutMillis > 0) {
+					JDBCTableEmitter schemaChangeEmitter = new JDBCTableEmitter(postgresURL);
+					schemaChangeEmitter.setLockTimeout(ddlLockTimeoutMillis);
+					multiEmitter.setSchemaChangeEmitter(schemaChangeEmitter);
+				}
+
+				if (useCitusDirectCopy) {
+					CitusDirectCopyEmitter directCopyEmitter = new CitusDirectCopyEmitter(
+							multiEmitter, postgresURL, copyFormat, dbConnectionCount);
+					directCopyEmitter.setSkipExistingRows(resumeData);
+					emitter = directCopyEmitter;
+				} else {
+					emitter = multiEmitter;
+				}
 			} else {
 				emitter = new StdoutSQLEmitter();
 			}
@@ -178,15 +533,47 @@ public class DynamoDBReplicator {
 				replicator.setUseCitus(useCitus);
 				replicator.setUseLowerCaseColumnNames(useLowerCaseColumnNames);
 				replicator.setConversionMode(conversionMode);
+				replicator.setScanSegments(scanSegments);
+				replicator.setPipelineDepth(pipelineDepth);
+				replicator.setScanPageLimit(scanPageLimit);
+				replicator.setConsistentScan(useConsistentScan);
+				replicator.setResumeData(resumeData);
+				replicator.setFastLoad(useFastLoad);
+				replicator.setDeferIndexes(deferIndexes);
+				replicator.setSchemaSample(schemaSampleSize, schemaSampleSegments);
+				replicator.setExportDirectory(exportDirectory, exportReaders);
+				replicator.setSpool(spoolDirectory, spoolSizeMB * 1024 * 1024);
+				replicator.setCheckpointPolicy(checkpointPolicy);
+				replicator.setStoreStreamCheckpoints(postgresCheckpoints);
+				replicator.setSequenceGuard(sequenceGuard);
+				replicator.setCopyWriters(postgresURL != null ? dbConnectionCount : 1);
 
 				replicators.add(replicator);
 			}
 
+			Map<String,ReadCapacityGovernor> governors = new HashMap<>();
+			ReadCapacityGovernor sharedGovernor = null;
+
+			if (totalScanRateString != null) {
+				/* all tables share a single read capacity budget */
+				sharedGovernor = new ReadCapacityGovernor(Integer.parseInt(totalScanRateString), scanWeights);
+			}
+
+			for(DynamoDBTableReplicator replicator : replicators) {
+				ReadCapacityGovernor governor = sharedGovernor;
+
+				if (governor == null) {
+					governor = new ReadCapacityGovernor(maxScanRate);
+				}
+
+				governors.put(replicator.dynamoTableName, governor);
+			}
+
 			if (replicateSchema) {
 				for(DynamoDBTableReplicator replicator : replicators) {
 					LOG.info(String.format("Constructing table schema for table %s", replicator.dynamoTableName));
 
-					replicator.replicateSchema();
+					replicator.replicateSchema(governors.get(replicator.dynamoTableName));
 				}
 			}
 
@@ -194,8 +581,10 @@ public class DynamoDBReplicator {
 				List<Future<Long>> futureResults = new ArrayList<Future<Long>>();
 
 				for(DynamoDBTableReplicator replicator : replicators) {
+					ReadCapacityGovernor governor = governors.get(replicator.dynamoTableName);
+
 					LOG.info(String.format("Replicating data for table %s", replicator.dynamoTableName));
-					Future<Long> futureResult = replicator.startReplicatingData(maxScanRate);
+					Future<Long> futureResult = replicator.startReplicatingData(governor);
 					futureResults.add(futureResult);
 				}
 
@@ -3,17 +3,26 @@
  */
 package com.citusdata.migration;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -56,16 +65,21 @@ import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
 import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
 import com.amazonaws.util.json.Jackson;
+import com.citusdata.migration.datamodel.Delete;
 import com.citusdata.migration.datamodel.PrimaryKeyValue;
+import com.citusdata.migration.datamodel.ScanProgress;
+import com.citusdata.migration.datamodel.StreamCheckpoint;
 import com.citusdata.migration.datamodel.TableColumn;
 import com.citusdata.migration.datamodel.TableColumnType;
 import com.citusdata.migration.datamodel.TableColumnValue;
 import com.citusdata.migration.datamodel.TableEmitter;
 import com.citusdata.migration.datamodel.TableExistsException;
+import com.citusdata.migration.datamodel.TableIndex;
+import com.citusdata.migration.datamodel.TableModification;
 import com.citusdata.migration.datamodel.TableRow;
 import com.citusdata.migration.datamodel.TableRowBatch;
 import com.citusdata.migration.datamodel.TableSchema;
-import com.google.common.util.concurrent.RateLimiter;
+import com.citusdata.migration.datamodel.Upsert;
 
 /**
  * @author marco
@@ -77,6 +91,14 @@ public class DynamoDBTableReplicator {
 
 	public static final String APPLICATION_NAME = "podyn";
 	public static final String LEASE_TABLE_PREFIX = "podyn_migration_";
+	public static final long SCAN_SEGMENT_SIZE_BYTES = 2L * 1024 * 1024 * 1024;
+	public static final int MAX_AUTO_SCAN_SEGMENTS = 64;
+
+	/* scanned rows are treated as written this long before their page was read */
+	public static final long SEQUENCE_GUARD_CLOCK_MARGIN_MILLIS = 60000;
+
+	/* stream sequence numbers have at most 40 digits */
+	static final BigInteger SEQUENCE_NUMBER_LIMIT = BigInteger.TEN.pow(40);
 
 	final AmazonDynamoDBStreams streamsClient;
 	final AmazonDynamoDB dynamoDBClient;
@@ -90,9 +112,33 @@ public class DynamoDBTableReplicator {
 	boolean useCitus;
 	boolean useLowerCaseColumnNames;
 	ConversionMode conversionMode;
+	int scanSegments;
+	int pipelineDepth;
+	int scanPageLimit;
+	boolean consistentScan;
+	boolean resumeData;
+	int copyWriters;
+	boolean fastLoad;
+	boolean deferIndexes;
+	int schemaSampleSize;
+	int schemaSampleSegments;
+	Path exportDirectory;
+	int exportReaders;
+	Path spoolDirectory;
+	long maxSpoolBytes;
+	CheckpointPolicy checkpointPolicy;
+	boolean storeStreamCheckpoints;
+	boolean sequenceGuard;
 
 	TableSchema tableSchema;
 
+	/* number of stream records that were dropped in favour of a later record for the same key */
+	final AtomicLong coalescedChanges;
+
+	/* number of stream checkpoints and the total time spent making them */
+	final AtomicLong checkpoints;
+	final AtomicLong checkpointNanos;
+
 	public DynamoDBTableReplicator(
 			AmazonDynamoDB dynamoDBClient,
 			AmazonDynamoDBStreams streamsClient,
@@ -109,6 +155,26 @@ public class DynamoDBTableReplicator {
 		this.addColumnsEnabled = true;
 		this.useCitus = false;
 		this.useLowerCaseColumnNames = false;
+		this.scanSegments = 0;
+		this.pipelineDepth = 4;
+		this.scanPageLimit = 0;
+		this.consistentScan = true;
+		this.resumeData = false;
+		this.copyWriters = 1;
+		this.fastLoad = false;
+		this.deferIndexes = false;
+		this.schemaSampleSize = 0;
+		this.schemaSampleSegments = 1;
+		this.exportDirectory = null;
+		this.exportReaders = 1;
+		this.spoolDirectory = null;
+		this.maxSpoolBytes = 0;
+		this.checkpointPolicy = CheckpointPolicy.EVERY_BATCH;
+		this.storeStreamCheckpoints = false;
+		this.sequenceGuard = false;
+		this.coalescedChanges = new AtomicLong();
+		this.checkpoints = new AtomicLong();
+		this.checkpointNanos = new AtomicLong();
 		this.tableSchema = emitter.fetchSchema(this.dynamoTableName);
 	}
 
@@ -128,6 +194,123 @@ public class DynamoDBTableReplicator {
 		this.conversionMode = conversionMode;
 	}
 
+	/*
+	 * setScanSegments sets the number of segments in which to split the initial
+	 * data scan, with 0 meaning derive it from the table size.
+	 */
+	public void setScanSegments(int scanSegments) {
+		this.scanSegments = scanSegments;
+	}
+
+	/*
+	 * setPipelineDepth sets the number of pages and batches that can be buffered
+	 * between the scan, convert and copy stages of the data load.
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	/*
+	 * setScanPageLimit sets the maximum number of items per scan request, with 0
+	 * meaning the limit is tuned to the observed item size.
+	 */
+	public void setScanPageLimit(int scanPageLimit) {
+		this.scanPageLimit = scanPageLimit;
+	}
+
+	public void setConsistentScan(boolean consistentScan) {
+		this.consistentScan = consistentScan;
+	}
+
+	/*
+	 * setResumeData makes the data load continue from the scan progress stored
+	 * by a previous data load, if any.
+	 */
+	public void setResumeData(boolean resumeData) {
+		this.resumeData = resumeData;
+	}
+
+	/*
+	 * setCopyWriters sets the maximum number of batches of the table that are
+	 * copied concurrently.
+	 */
+	public void setCopyWriters(int copyWriters) {
+		this.copyWriters = copyWriters;
+	}
+
+	/*
+	 * setFastLoad makes replicateSchema create the table as UNLOGGED, which is
+	 * made logged once the data load is done.
+	 */
+	public void setFastLoad(boolean fastLoad) {
+		this.fastLoad = fastLoad;
+	}
+
+	/*
+	 * setDeferIndexes makes replicateSchema create the table without secondary
+	 * indexes, which are built in parallel once the data load is done.
+	 */
+	public void setDeferIndexes(boolean deferIndexes) {
+		this.deferIndexes = deferIndexes;
+	}
+
+	/*
+	 * setSchemaSample makes replicateSchema derive the columns of the table from
+	 * a sample of the given number of items, taken from the given number of
+	 * parallel scan segments, with a sample size of 0 meaning no sampling.
+	 */
+	public void setSchemaSample(int schemaSampleSize, int schemaSampleSegments) {
+		this.schemaSampleSize = schemaSampleSize;
+		this.schemaSampleSegments = schemaSampleSegments;
+	}
+
+	/*
+	 * setExportDirectory makes replicateData load the items from the files of a
+	 * DynamoDB export in the given directory, using the given number of readers,
+	 * instead of scanning the table.
+	 */
+	public void setExportDirectory(Path exportDirectory, int exportReaders) {
+		this.exportDirectory = exportDirectory;
+		this.exportReaders = exportReaders;
+	}
+
+	/*
+	 * setSpool makes replicateData buffer scanned pages in a spool in the given
+	 * directory that uses at most maxSpoolBytes of disk space, such that a slow
+	 * destination does not slow down the scan.
+	 */
+	public void setSpool(Path spoolDirectory, long maxSpoolBytes) {
+		this.spoolDirectory = spoolDirectory;
+		this.maxSpoolBytes = maxSpoolBytes;
+	}
+
+	/*
+	 * setCheckpointPolicy sets when the stream processors checkpoint, by
+	 * default after every batch.
+	 */
+	public void setCheckpointPolicy(CheckpointPolicy checkpointPolicy) {
+		this.checkpointPolicy = checkpointPolicy;
+	}
+
+	/*
+	 * setStoreStreamCheckpoints makes the stream processors store the last
+	 * applied sequence number of each shard in the destination, in the same
+	 * transaction as the changes, and skip records up to it after a restart.
+	 */
+	public void setStoreStreamCheckpoints(boolean storeStreamCheckpoints) {
+		this.storeStreamCheckpoints = storeStreamCheckpoints;
+	}
+
+	/*
+	 * setSequenceGuard makes the table carry hidden columns with the position
+	 * of the change that last wrote each row, such that older changes are
+	 * skipped and deletes leave tombstones. Tables that already have the
+	 * columns are always sequence guarded.
+	 */
+	public void setSequenceGuard(boolean sequenceGuard) {
+		this.sequenceGuard = sequenceGuard;
+	}
+
 	String dynamoKeyToColumnName(String keyName) {
 		if (useLowerCaseColumnNames) {
 			return keyName.toLowerCase();
@@ -136,12 +319,30 @@ public class DynamoDBTableReplicator {
 		}
 	}
 
-	public void replicateSchema() throws TableExistsException {
+	/*
+	 * replicateSchema creates the table in the destination, using the given
+	 * governor to limit the read capacity used when sampling the table.
+	 */
+	public void replicateSchema(ReadCapacityGovernor governor) throws TableExistsException, InterruptedException, ExecutionException {
 		if (tableSchema != null) {
 			throw new TableExistsException("relation %s already exists", dynamoTableName);
 		}
 
-		tableSchema = fetchSourceSchema();
+		TableSchema sourceSchema = fetchSourceSchema();
+
+		if (schemaSampleSize > 0 && conversionMode != ConversionMode.jsonb) {
+			SchemaSampler sampler = new SchemaSampler(this, schemaSampleSize, schemaSampleSegments);
+			sampler.addSampledColumns(sourceSchema, governor);
+		}
+
+		if (sequenceGuard) {
+			sourceSchema.addColumn(TableSchema.SEQUENCE_COLUMN_NAME, TableColumnType.numeric);
+			sourceSchema.addColumn(TableSchema.DELETED_COLUMN_NAME, TableColumnType.bool);
+		}
+
+		tableSchema = sourceSchema;
+		tableSchema.setUnlogged(fastLoad);
+		tableSchema.setDeferIndexes(deferIndexes);
 		emitter.createTable(tableSchema);
 	}
 
@@ -216,74 +417,202 @@ public class DynamoDBTableReplicator {
 		return tableSchema;
 	}
 
-	public Future<Long> startReplicatingData(final int maxScanRate) {
+	public Future<Long> startReplicatingData(final ReadCapacityGovernor governor) {
 		return executor.submit(new Callable<Long>() {
 			@Override
 			public Long call() throws Exception {
-				return replicateData(maxScanRate);
+				return replicateData(governor);
 			}
 		});
 	}
 
-	public long replicateData(int maxScanRate) {
-		RateLimiter rateLimiter = RateLimiter.create(maxScanRate);
+	/*
+	 * replicateData loads all data in the table into the destination, using
+	 * the given governor to limit the read capacity used by the scan.
+	 */
+	public long replicateData(ReadCapacityGovernor governor) throws InterruptedException, ExecutionException, IOException {
+		long numRows;
 
-		Map<String,AttributeValue> lastEvaluatedScanKey = null;
-		long numRowsReplicated = 0;
+		addSequenceGuardColumns();
 
-		while(true) {
-			ScanResult scanResult = scanWithRetries(lastEvaluatedScanKey);
+		if (exportDirectory != null) {
+			/* the time of the export is not known, so exported rows have no sequence */
+			numRows = loadExportFiles();
+		} else {
+			numRows = scanData(governor);
+		}
 
-			if (addColumnsEnabled) {
-				for(Map<String,AttributeValue> dynamoItem : scanResult.getItems()) {
-					addNewColumns(dynamoItem);
-				}
+		if (tableSchema != null && tableSchema.isUnlogged()) {
+			LOG.info(String.format("Making table %s logged and freezing it", dynamoTableName));
+			emitter.finishDataLoad(tableSchema);
+		}
+
+		if (deferIndexes) {
+			createIndexes();
+		}
+
+		return numRows;
+	}
+
+	/*
+	 * loadExportFiles loads the items in the export directory into the
+	 * destination.
+	 */
+	long loadExportFiles() throws InterruptedException, ExecutionException, IOException {
+		List<Path> exportFiles = DynamoExportReader.findExportFiles(exportDirectory);
+
+		if (exportFiles.isEmpty()) {
+			throw new FileNotFoundException(String.format("no export files found in %s", exportDirectory));
+		}
+
+		LOG.info(String.format("Loading %d export files into table %s", exportFiles.size(), dynamoTableName));
+
+		DataLoadPipeline pipeline = new DataLoadPipeline(this, pipelineDepth, copyWriters);
+		pipeline.setSpool(spoolDirectory, maxSpoolBytes);
+
+		return pipeline.runExport(exportFiles, exportReaders);
+	}
+
+	/*
+	 * scanData scans the table and loads the items into the destination.
+	 */
+	long scanData(ReadCapacityGovernor governor) throws InterruptedException, ExecutionException, IOException {
+		List<ScanProgress> scanProgress = Collections.emptyList();
+		int totalSegments;
+
+		if (resumeData) {
+			scanProgress = emitter.fetchScanProgress(dynamoTableName);
+
+			if (!scanProgress.isEmpty() && tableSchema != null && tableSchema.isUnlogged() && !emitter.hasRows(tableSchema)) {
+				/* an UNLOGGED table is emptied when PostgreSQL crashes */
+				LOG.warn(String.format("Table %s was loaded as unlogged and is empty, restarting the data load", dynamoTableName));
+				scanProgress = Collections.emptyList();
 			}
+		}
 
-			TableRowBatch tableRowBatch = new TableRowBatch();
+		if (!scanProgress.isEmpty()) {
+			totalSegments = scanProgress.get(0).totalSegments;
 
-			for(Map<String,AttributeValue> dynamoItem : scanResult.getItems()) {
-				TableRow tableRow = rowFromDynamoRecord(dynamoItem);
+			LOG.info(String.format("Resuming data load for table %s", dynamoTableName));
+		} else {
+			emitter.clearScanProgress(dynamoTableName);
+			totalSegments = scanSegments > 0 ? scanSegments : estimateScanSegments();
+		}
+
+		if (totalSegments > 1) {
+			LOG.info(String.format("Scanning table %s in %d parallel segments", dynamoTableName, totalSegments));
+		}
+
+		DataLoadPipeline pipeline = new DataLoadPipeline(this, pipelineDepth, copyWriters);
+		pipeline.setSpool(spoolDirectory, maxSpoolBytes);
+
+		return pipeline.run(totalSegments, governor, scanProgress);
+	}
+
+	/*
+	 * createIndexes builds the secondary indexes of the table concurrently, each
+	 * over its own connection. The indexes are taken from the DynamoDB table
+	 * description, such that they are also built after resuming a load.
+	 */
+	void createIndexes() throws InterruptedException, ExecutionException {
+		List<TableIndex> tableIndexes = fetchSourceSchema().getIndexes();
+
+		if (tableIndexes.isEmpty()) {
+			return;
+		}
+
+		LOG.info(String.format("Building %d indexes on table %s", tableIndexes.size(), dynamoTableName));
 
-				tableRowBatch.addRow(tableRow);
+		List<Future<?>> indexFutures = new ArrayList<>();
+
+		for (TableIndex tableIndex : tableIndexes) {
+			indexFutures.add(executor.submit(() -> emitter.createIndex(tableIndex)));
+		}
+
+		ExecutionException indexException = null;
+
+		for (Future<?> indexFuture : indexFutures) {
+			try {
+				indexFuture.get();
+			} catch (ExecutionException e) {
+				if (indexException == null) {
+					indexException = e;
+				}
 			}
+		}
 
-			LOG.info(String.format("Replicated %d rows to table %s", tableRowBatch.size(), tableSchema.tableName));
+		if (indexException != null) {
+			throw indexException;
+		}
 
-			numRowsReplicated += tableRowBatch.size();
+		LOG.info(String.format("Finished building indexes on table %s", dynamoTableName));
+	}
 
-			/* load the batch using COPY */
-			emitter.copyFromReader(tableSchema, tableRowBatch.asCopyReader());
+	/*
+	 * estimateScanSegments derives the number of parallel scan segments from the
+	 * (approximate) table size, using one segment per SCAN_SEGMENT_SIZE_BYTES.
+	 */
+	int estimateScanSegments() {
+		DescribeTableResult describeTableResult = dynamoDBClient.describeTable(dynamoTableName);
+		Long tableSizeBytes = describeTableResult.getTable().getTableSizeBytes();
 
-			lastEvaluatedScanKey = scanResult.getLastEvaluatedKey();
+		if (tableSizeBytes == null) {
+			return 1;
+		}
 
-			if(lastEvaluatedScanKey == null) {
-				break;
+		long numSegments = tableSizeBytes / SCAN_SEGMENT_SIZE_BYTES + 1;
+
+		return (int) Math.min(numSegments, MAX_AUTO_SCAN_SEGMENTS);
+	}
+
+	/*
+	 * rowBatchFromDynamoItems converts a page of items to rows. If the table is
+	 * sequence guarded, rows of a scanned page get the time at which the page
+	 * was read minus a margin for clock differences, such that stream records
+	 * the page already reflects are skipped. Rows from an export have no
+	 * sequence.
+	 */
+	TableRowBatch rowBatchFromDynamoItems(List<Map<String,AttributeValue>> dynamoItems, long readTimeMillis) {
+		if (addColumnsEnabled) {
+			for(Map<String,AttributeValue> dynamoItem : dynamoItems) {
+				addNewColumns(dynamoItem);
 			}
+		}
+
+		TableRowBatch tableRowBatch = new TableRowBatch(tableSchema);
+		String sequenceValue = null;
 
-			// Account for the rest of the throughput we consumed, 
-			// now that we know how much that scan request cost 
-			double consumedCapacity = scanResult.getConsumedCapacity().getCapacityUnits();
-			int permitsToConsume = (int)(consumedCapacity - 1.0);
-			if (permitsToConsume <= 0) {
-				permitsToConsume = 1;
+		if (readTimeMillis != 0) {
+			sequenceValue = toSequenceValue(new Date(readTimeMillis - SEQUENCE_GUARD_CLOCK_MARGIN_MILLIS), "0");
+		}
+
+		for(Map<String,AttributeValue> dynamoItem : dynamoItems) {
+			TableRow tableRow = rowFromDynamoRecord(dynamoItem);
+
+			if (tableSchema.isSequenceGuarded()) {
+				setSequence(tableRow, sequenceValue, false);
 			}
 
-			// Let the rate limiter wait until our desired throughput "recharges"
-			rateLimiter.acquire(permitsToConsume);
+			tableRowBatch.addRow(tableRow);
 		}
 
-		return numRowsReplicated;
+		return tableRowBatch;
 	}
 
-	private ScanResult scanWithRetries(Map<String, AttributeValue> lastEvaluatedScanKey) {
+	ScanResult scanWithRetries(int segment, int totalSegments, Map<String, AttributeValue> lastEvaluatedScanKey, int limit) {
 		ScanRequest scanRequest = new ScanRequest().
 				withTableName(this.dynamoTableName).
-				withConsistentRead(true).
+				withConsistentRead(consistentScan).
 				withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL).
-				withLimit(100).
+				withLimit(limit).
 				withExclusiveStartKey(lastEvaluatedScanKey);
 
+		if (totalSegments > 1) {
+			scanRequest = scanRequest.
+					withSegment(segment).
+					withTotalSegments(totalSegments);
+		}
+
 		for (int tryNumber = 1; ; tryNumber++) {
 			try {
 				ScanResult scanResult = dynamoDBClient.scan(scanRequest);
@@ -319,6 +648,8 @@ public class DynamoDBTableReplicator {
 			throw new TableExistsException("table %s does not exist in destination", dynamoTableName);
 		}
 
+		addSequenceGuardColumns();
+
 		String tableStreamArn = getStreamArn();
 
 		if (tableStreamArn == null) {
@@ -334,7 +665,7 @@ public class DynamoDBTableReplicator {
 				APPLICATION_NAME, tableStreamArn, awsCredentialsProvider, workerId).
 				withMaxRecords(1000).
 				withIdleTimeBetweenReadsInMillis(500).
-				withCallProcessRecordsEvenForEmptyRecordList(false).
+				withCallProcessRecordsEvenForEmptyRecordList(checkpointPolicy.isTimeBased()).
 				withCleanupLeasesUponShardCompletion(false).
 				withFailoverTimeMillis(20000).
 				withTableName(LEASE_TABLE_PREFIX + dynamoTableName).
@@ -362,8 +693,64 @@ public class DynamoDBTableReplicator {
 	protected IRecordProcessor createStreamProcessor() {
 		return new IRecordProcessor() {
 
+			String shardId;
+
+			/* last record that was applied, but not yet checkpointed */
+			com.amazonaws.services.kinesis.model.Record lastAppliedRecord;
+			long recordsSinceCheckpoint;
+			long lastCheckpointTime;
+
+			/* sequence number up to which the destination has applied the shard */
+			BigInteger storedSequenceNumber;
+
 			@Override
 			public void initialize(InitializationInput initializationInput) {
+				shardId = initializationInput.getShardId();
+				lastAppliedRecord = null;
+				recordsSinceCheckpoint = 0;
+				lastCheckpointTime = System.currentTimeMillis();
+				storedSequenceNumber = null;
+
+				if (storeStreamCheckpoints) {
+					String sequenceNumber = emitter.fetchStreamCheckpoint(dynamoTableName, shardId);
+
+					if (sequenceNumber != null) {
+						LOG.info(String.format("Resuming shard %s of table %s after sequence number %s",
+								shardId, dynamoTableName, sequenceNumber));
+
+						storedSequenceNumber = new BigInteger(sequenceNumber);
+					}
+				}
+			}
+
+			/*
+			 * skipAppliedRecords returns the records that come after the
+			 * sequence number stored in the destination.
+			 */
+			List<com.amazonaws.services.kinesis.model.Record> skipAppliedRecords(List<com.amazonaws.services.kinesis.model.Record> kinesisRecords) {
+				if (storedSequenceNumber == null) {
+					return kinesisRecords;
+				}
+
+				List<com.amazonaws.services.kinesis.model.Record> newRecords = new ArrayList<>(kinesisRecords.size());
+
+				for (com.amazonaws.services.kinesis.model.Record kinesisRecord : kinesisRecords) {
+					if (new BigInteger(kinesisRecord.getSequenceNumber()).compareTo(storedSequenceNumber) > 0) {
+						newRecords.add(kinesisRecord);
+					}
+				}
+
+				if (newRecords.size() < kinesisRecords.size()) {
+					LOG.info(String.format("Skipped %d records in shard %s of table %s that were already applied",
+							kinesisRecords.size() - newRecords.size(), shardId, dynamoTableName));
+				}
+
+				if (!newRecords.isEmpty()) {
+					/* records arrive in order, so no further records need to be skipped */
+					storedSequenceNumber = null;
+				}
+
+				return newRecords;
 			}
 
 			public List<Record> extractDynamoStreamRecords(List<com.amazonaws.services.kinesis.model.Record> kinesisRecords) {
@@ -381,31 +768,87 @@ public class DynamoDBTableReplicator {
 
 			@Override
 			public void processRecords(ProcessRecordsInput processRecordsInput) {
-				List<Record> records = extractDynamoStreamRecords(processRecordsInput.getRecords());
+				List<com.amazonaws.services.kinesis.model.Record> kinesisRecords = processRecordsInput.getRecords();
+
+				if (!kinesisRecords.isEmpty()) {
+					com.amazonaws.services.kinesis.model.Record lastRecord = kinesisRecords.get(kinesisRecords.size() - 1);
+					List<Record> records = extractDynamoStreamRecords(skipAppliedRecords(kinesisRecords));
+					StreamCheckpoint streamCheckpoint = null;
+
+					if (storeStreamCheckpoints) {
+						streamCheckpoint = new StreamCheckpoint(dynamoTableName, shardId, lastRecord.getSequenceNumber(), 0);
+					}
+
+					if (!records.isEmpty()) {
+						DynamoDBTableReplicator.this.processRecords(records, streamCheckpoint);
+					}
 
-				DynamoDBTableReplicator.this.processRecords(records);
+					/* all records in the batch have been applied */
+					lastAppliedRecord = lastRecord;
+					recordsSinceCheckpoint += kinesisRecords.size();
+				}
+
+				long millisSinceCheckpoint = System.currentTimeMillis() - lastCheckpointTime;
 
-				checkpoint(processRecordsInput.getCheckpointer());
+				if (checkpointPolicy.shouldCheckpoint(recordsSinceCheckpoint, millisSinceCheckpoint)) {
+					checkpoint(processRecordsInput.getCheckpointer());
+				}
 			}
 
 			@Override
 			public void shutdown(ShutdownInput shutdownInput) {
 				if (shutdownInput.getShutdownReason() == ShutdownReason.TERMINATE) {
-					checkpoint(shutdownInput.getCheckpointer());
+					/* the end of the shard needs to be checkpointed to continue with its children */
+					lastAppliedRecord = null;
+
+					if (checkpoint(shutdownInput.getCheckpointer()) && storeStreamCheckpoints) {
+						/* the shard will not be read again */
+						emitter.clearStreamCheckpoint(dynamoTableName, shardId);
+					}
 				}
 			}
 
-			void checkpoint(IRecordProcessorCheckpointer checkpointer) {
+			/*
+			 * checkpoint stores the last applied record as the position of the
+			 * shard, or the last record that was delivered if there is none,
+			 * and returns whether the checkpoint was stored.
+			 */
+			boolean checkpoint(IRecordProcessorCheckpointer checkpointer) {
+				long startTime = System.nanoTime();
+
 				try {
-					checkpointer.checkpoint();
+					if (lastAppliedRecord != null) {
+						checkpointer.checkpoint(lastAppliedRecord);
+					} else {
+						checkpointer.checkpoint();
+					}
 				} catch (KinesisClientLibDependencyException|InvalidStateException|ThrottlingException|ShutdownException e) {
 					LOG.warn(e);
+					return false;
 				}
+
+				long checkpointTimeNanos = System.nanoTime() - startTime;
+				long numCheckpoints = checkpoints.incrementAndGet();
+				long totalCheckpointNanos = checkpointNanos.addAndGet(checkpointTimeNanos);
+
+				LOG.info(String.format("Checkpointed shard %s of table %s after %d records in %d ms (%d checkpoints, %.1f ms on average)",
+						shardId, dynamoTableName, recordsSinceCheckpoint, checkpointTimeNanos / 1000000,
+						numCheckpoints, totalCheckpointNanos / 1000000.0 / numCheckpoints));
+
+				lastAppliedRecord = null;
+				recordsSinceCheckpoint = 0;
+				lastCheckpointTime = System.currentTimeMillis();
+
+				return true;
 			}
 		};
 	}
 
-	void processRecords(List<Record> records) {
+	/*
+	 * processRecords applies the changes in the records to the destination,
+	 * along with the stream checkpoint if it is not null.
+	 */
+	void processRecords(List<Record> records, StreamCheckpoint streamCheckpoint) {
 		if (addColumnsEnabled) {
 			for (Record dynamoRecord : records) {
 				StreamRecord streamRecord = dynamoRecord.getDynamodb();
@@ -419,8 +862,16 @@ public class DynamoDBTableReplicator {
 			}
 		}
 
+		List<TableModification> modifications = new ArrayList<>();
+		boolean sequenceGuarded = tableSchema.isSequenceGuarded();
+
 		for (Record dynamoRecord : records) {
 			StreamRecord streamRecord = dynamoRecord.getDynamodb();
+			String sequenceValue = null;
+
+			if (sequenceGuarded) {
+				sequenceValue = toSequenceValue(streamRecord.getApproximateCreationDateTime(), streamRecord.getSequenceNumber());
+			}
 
 			switch (dynamoRecord.getEventName()) {
 			case "INSERT":
@@ -433,50 +884,207 @@ public class DynamoDBTableReplicator {
 				}
 
 				TableRow tableRow = rowFromDynamoRecord(dynamoItem);
-				emitter.upsert(tableRow);
-				LOG.debug(tableRow.toUpsert());
+
+				if (sequenceGuarded) {
+					setSequence(tableRow, sequenceValue, false);
+				}
+
+				modifications.add(new Upsert(tableRow));
 				break;
 			case "REMOVE":
 				Map<String,AttributeValue> dynamoKeys = streamRecord.getKeys();
 				PrimaryKeyValue keyValue = primaryKeyValueFromDynamoKeys(dynamoKeys);
-				emitter.delete(keyValue);
-				LOG.debug(keyValue.toDelete());
+
+				if (sequenceGuarded) {
+					/* keep a tombstone, such that older changes to the key are skipped */
+					TableRow tombstoneRow = keyValue.toRow();
+					setSequence(tombstoneRow, sequenceValue, true);
+					modifications.add(new Upsert(tombstoneRow));
+				} else {
+					modifications.add(new Delete(keyValue));
+				}
 				break;
 			}
 
 			LOG.debug(streamRecord);
 		}
 
-		LOG.info(String.format("Replicated %d changes to table %s", records.size(), tableSchema.tableName));
+		List<TableModification> coalescedModifications = coalesceModifications(modifications);
+		long numCoalesced = modifications.size() - coalescedModifications.size();
+		coalescedChanges.addAndGet(numCoalesced);
+
+		/* apply the changes in batches, keeping the order of changes to the same key */
+		emitter.applyModifications(coalescedModifications, streamCheckpoint);
+
+		LOG.info(String.format("Replicated %d changes to table %s (%d coalesced, %d in total)",
+				records.size(), tableSchema.tableName, numCoalesced, coalescedChanges.get()));
+	}
+
+	/*
+	 * toSequenceValue returns the value of the sequence column for a change
+	 * made at the given time with the given stream sequence number. Sequence
+	 * numbers only increase within a shard and its children, which contain
+	 * all changes to a key, but scanned rows also need to be ordered with
+	 * respect to changes. The creation time of the change, which is rounded
+	 * down to seconds, is therefore placed in front of the sequence number.
+	 */
+	static String toSequenceValue(Date creationTime, String sequenceNumber) {
+		long creationSeconds = (creationTime != null ? creationTime.getTime() : System.currentTimeMillis()) / 1000;
+
+		return BigInteger.valueOf(creationSeconds).
+				multiply(SEQUENCE_NUMBER_LIMIT).
+				add(new BigInteger(sequenceNumber)).
+				toString();
+	}
+
+	static void setSequence(TableRow tableRow, String sequenceValue, boolean deleted) {
+		if (sequenceValue != null) {
+			tableRow.setValue(TableSchema.SEQUENCE_COLUMN_NAME, sequenceValue);
+		}
+
+		tableRow.setValue(TableSchema.DELETED_COLUMN_NAME, deleted);
+	}
+
+	/*
+	 * addSequenceGuardColumns adds the hidden sequence and deleted columns to
+	 * the table if the sequence guard is enabled and the table lacks them.
+	 */
+	synchronized void addSequenceGuardColumns() {
+		if (!sequenceGuard || tableSchema == null || tableSchema.isSequenceGuarded()) {
+			return;
+		}
+
+		if (!tableSchema.columnExists(TableSchema.SEQUENCE_COLUMN_NAME)) {
+			LOG.info(String.format("Adding sequence column to table %s", tableSchema.tableName));
+			createColumn(new TableColumn(tableSchema, TableSchema.SEQUENCE_COLUMN_NAME, TableColumnType.numeric));
+		}
+
+		if (!tableSchema.columnExists(TableSchema.DELETED_COLUMN_NAME)) {
+			LOG.info(String.format("Adding deleted column to table %s", tableSchema.tableName));
+			createColumn(new TableColumn(tableSchema, TableSchema.DELETED_COLUMN_NAME, TableColumnType.bool));
+		}
+	}
+
+	/*
+	 * coalesceModifications keeps only the last modification of each key. A
+	 * new image replaces the whole row and a removal deletes it regardless of
+	 * what came before, so applying only the last modification of a key gives
+	 * the same result as applying all of them in order.
+	 */
+	static List<TableModification> coalesceModifications(List<TableModification> modifications) {
+		Map<String,TableModification> lastModifications = new LinkedHashMap<>();
+
+		for (TableModification modification : modifications) {
+			lastModifications.put(modification.getPrimaryKeyValue().toValues(), modification);
+		}
+
+		return new ArrayList<>(lastModifications.values());
+	}
+
+	/*
+	 * getCoalescedChanges returns the number of stream records that were not
+	 * applied because a later record in the same batch had the same key.
+	 */
+	public long getCoalescedChanges() {
+		return coalescedChanges.get();
+	}
+
+	/*
+	 * getCheckpoints returns the number of stream checkpoints made so far.
+	 */
+	public long getCheckpoints() {
+		return checkpoints.get();
 	}
 
+	/*
+	 * getCheckpointMillis returns the total time spent making stream
+	 * checkpoints so far.
+	 */
+	public long getCheckpointMillis() {
+		return checkpointNanos.get() / 1000000;
+	}
+
+	/*
+	 * addNewColumns creates columns for the attributes of the item that do not
+	 * have one yet. Scan segments and stream shards may add columns
+	 * concurrently, but only threads that find a new attribute wait for the
+	 * column to be created, others keep writing with the existing columns.
+	 */
 	void addNewColumns(Map<String,AttributeValue> item) {
 		if(conversionMode == ConversionMode.jsonb) {
 			/* don't add new columns in jsonb mode */
 			return;
 		}
 
+		if (findNewColumns(tableSchema, item).isEmpty()) {
+			return;
+		}
+
+		synchronized (this) {
+			/* another thread may have added some of the columns meanwhile */
+			for (TableColumn column : findNewColumns(tableSchema, item)) {
+				LOG.info(String.format("Adding new column to table %s: %s", tableSchema.tableName, column));
+				createColumn(column);
+			}
+		}
+	}
+
+	/*
+	 * createColumn creates the column in the destination and only then adds it
+	 * to the schema, such that rows are not written with the column before it
+	 * exists.
+	 */
+	synchronized void createColumn(TableColumn column) {
+		emitter.createColumn(column);
+		tableSchema.addColumn(column.name, column.type);
+	}
+
+	/*
+	 * addColumnsForItem adds columns for the attributes of the item that do not
+	 * have a column of the right type to the schema, without creating them in
+	 * the destination, and returns the new columns.
+	 */
+	synchronized List<TableColumn> addColumnsForItem(TableSchema tableSchema, Map<String,AttributeValue> item) {
+		List<TableColumn> newColumns = new ArrayList<>();
+
+		for (TableColumn column : findNewColumns(tableSchema, item)) {
+			newColumns.add(tableSchema.addColumn(column.name, column.type));
+		}
+
+		return newColumns;
+	}
+
+	/*
+	 * findNewColumns returns the columns that the schema needs for the
+	 * attributes of the item, without adding them to the schema.
+	 */
+	List<TableColumn> findNewColumns(TableSchema tableSchema, Map<String,AttributeValue> item) {
+		Map<String,TableColumn> newColumns = new LinkedHashMap<>();
+
 		for(Map.Entry<String,AttributeValue> entry : item.entrySet()) {
 			String keyName = entry.getKey();
 			String columnName = dynamoKeyToColumnName(keyName);
-			TableColumn column = tableSchema.getColumn(columnName);
 			TableColumnType valueType = DynamoDBTableReplicator.columnTypeFromDynamoValue(entry.getValue());
+			TableColumn column = findColumn(tableSchema, newColumns, columnName);
 
 			if (column == null) {
-				column = tableSchema.addColumn(columnName, valueType);
-				LOG.info(String.format("Adding new column to table %s: %s", tableSchema.tableName, column));
-				emitter.createColumn(column);
+				newColumns.put(columnName, new TableColumn(tableSchema, columnName, valueType));
 			} else if (column.type != valueType) {
 				columnName = columnName + "_" + valueType;
-				column = tableSchema.getColumn(columnName);
+				column = findColumn(tableSchema, newColumns, columnName);
 
 				if (column == null) {
-					column = tableSchema.addColumn(columnName, valueType);
-					LOG.info(String.format("Adding new column to table %s: %s", tableSchema.tableName, column));
-					emitter.createColumn(column);
+					newColumns.put(columnName, new TableColumn(tableSchema, columnName, valueType));
 				}
 			}
 		}
+
+		return new ArrayList<>(newColumns.values());
+	}
+
+	static TableColumn findColumn(TableSchema tableSchema, Map<String,TableColumn> newColumns, String columnName) {
+		TableColumn column = newColumns.get(columnName);
+		return column != null ? column : tableSchema.getColumn(columnName);
 	}
 
 	PrimaryKeyValue primaryKeyValueFromDynamoKeys(Map<String,AttributeValue> dynamoKeys) {
@@ -0,0 +1,97 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/*
+ * DynamoExportReader reads items from a file of a DynamoDB export in DynamoDB
+ * JSON format, which has one {"Item":{...}} object per line and is usually
+ * gzip-compressed.
+ */
+public class DynamoExportReader implements Closeable {
+
+	final Path exportFile;
+	final BufferedReader reader;
+	long lineNumber;
+
+	public DynamoExportReader(Path exportFile) throws IOException {
+		InputStream inputStream = Files.newInputStream(exportFile);
+
+		if (exportFile.getFileName().toString().endsWith(".gz")) {
+			inputStream = new GZIPInputStream(inputStream, 64 * 1024);
+		}
+
+		this.exportFile = exportFile;
+		this.reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), 64 * 1024);
+		this.lineNumber = 0;
+	}
+
+	/*
+	 * findExportFiles returns the data files of an export in the directory or
+	 * its subdirectories, which end in .json.gz or .json.
+	 */
+	public static List<Path> findExportFiles(Path exportDirectory) throws IOException {
+		try (Stream<Path> paths = Files.walk(exportDirectory)) {
+			return paths.
+					filter(Files::isRegularFile).
+					filter(path -> {
+						String fileName = path.getFileName().toString();
+						return fileName.endsWith(".json.gz") || fileName.endsWith(".json");
+					}).
+					filter(path -> !path.getFileName().toString().startsWith("manifest-")).
+					sorted().
+					collect(Collectors.toList());
+		}
+	}
+
+	/*
+	 * readItems returns up to maxItems items from the file, or an empty list at
+	 * the end of the file.
+	 */
+	public List<Map<String,AttributeValue>> readItems(int maxItems) throws IOException {
+		List<Map<String,AttributeValue>> items = new ArrayList<>();
+		String line;
+
+		while (items.size() < maxItems && (line = reader.readLine()) != null) {
+			lineNumber++;
+
+			if (line.isEmpty()) {
+				continue;
+			}
+
+			JsonNode itemNode = DynamoJson.MAPPER.readTree(line).get("Item");
+
+			if (itemNode == null) {
+				throw new InvalidItemException("line %d of %s does not contain an Item", lineNumber, exportFile);
+			}
+
+			items.add(DynamoJson.itemFromJsonNode(itemNode));
+		}
+
+		return items;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/*
+ * DynamoJson converts DynamoDB items to and from the typed JSON format used by
+ * the DynamoDB API, e.g. {"id":{"S":"abc"},"count":{"N":"3"}}, in which binary
+ * values are base64-encoded.
+ */
+public class DynamoJson {
+
+	static final ObjectMapper MAPPER = new ObjectMapper();
+	static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+	public static String toJson(Map<String,AttributeValue> item) {
+		try {
+			return MAPPER.writeValueAsString(toJsonNode(item));
+		} catch (IOException e) {
+			throw new InvalidItemException(e);
+		}
+	}
+
+	public static Map<String,AttributeValue> fromJson(String json) throws IOException {
+		return itemFromJsonNode(MAPPER.readTree(json));
+	}
+
+	public static ObjectNode toJsonNode(Map<String,AttributeValue> item) {
+		ObjectNode itemNode = NODES.objectNode();
+
+		for (Map.Entry<String,AttributeValue> entry : item.entrySet()) {
+			itemNode.set(entry.getKey(), toJsonNode(entry.getValue()));
+		}
+
+		return itemNode;
+	}
+
+	public static ObjectNode toJsonNode(AttributeValue value) {
+		ObjectNode valueNode = NODES.objectNode();
+
+		if (value.getS() != null) {
+			valueNode.put("S", value.getS());
+		} else if (value.getN() != null) {
+			valueNode.put("N", value.getN());
+		} else if (value.getB() != null) {
+			valueNode.put("B", toBase64(value.getB()));
+		} else if (value.getBOOL() != null) {
+			valueNode.put("BOOL", value.getBOOL());
+		} else if (value.getM() != null) {
+			valueNode.set("M", toJsonNode(value.getM()));
+		} else if (value.getL() != null) {
+			ArrayNode listNode = valueNode.putArray("L");
+
+			for (AttributeValue element : value.getL()) {
+				listNode.add(toJsonNode(element));
+			}
+		} else if (value.getSS() != null) {
+			ArrayNode setNode = valueNode.putArray("SS");
+
+			for (String element : value.getSS()) {
+				setNode.add(element);
+			}
+		} else if (value.getNS() != null) {
+			ArrayNode setNode = valueNode.putArray("NS");
+
+			for (String element : value.getNS()) {
+				setNode.add(element);
+			}
+		} else if (value.getBS() != null) {
+			ArrayNode setNode = valueNode.putArray("BS");
+
+			for (ByteBuffer element : value.getBS()) {
+				setNode.add(toBase64(element));
+			}
+		} else {
+			valueNode.put("NULL", true);
+		}
+
+		return valueNode;
+	}
+
+	public static Map<String,AttributeValue> itemFromJsonNode(JsonNode itemNode) {
+		Map<String,AttributeValue> item = new LinkedHashMap<>();
+		Iterator<Map.Entry<String,JsonNode>> fields = itemNode.fields();
+
+		while (fields.hasNext()) {
+			Map.Entry<String,JsonNode> field = fields.next();
+			item.put(field.getKey(), valueFromJsonNode(field.getValue()));
+		}
+
+		return item;
+	}
+
+	public static AttributeValue valueFromJsonNode(JsonNode valueNode) {
+		AttributeValue value = new AttributeValue();
+
+		if (valueNode.has("S")) {
+			value.setS(valueNode.get("S").asText());
+		} else if (valueNode.has("N")) {
+			value.setN(valueNode.get("N").asText());
+		} else if (valueNode.has("B")) {
+			value.setB(fromBase64(valueNode.get("B").asText()));
+		} else if (valueNode.has("BOOL")) {
+			value.setBOOL(valueNode.get("BOOL").asBoolean());
+		} else if (valueNode.has("NULL")) {
+			value.setNULL(true);
+		} else if (valueNode.has("M")) {
+			value.setM(itemFromJsonNode(valueNode.get("M")));
+		} else if (valueNode.has("L")) {
+			List<AttributeValue> list = new ArrayList<>();
+
+			for (JsonNode element : valueNode.get("L")) {
+				list.add(valueFromJsonNode(element));
+			}
+
+			value.setL(list);
+		} else if (valueNode.has("SS")) {
+			List<String> set = new ArrayList<>();
+
+			for (JsonNode element : valueNode.get("SS")) {
+				set.add(element.asText());
+			}
+
+			value.setSS(set);
+		} else if (valueNode.has("NS")) {
+			List<String> set = new ArrayList<>();
+
+			for (JsonNode element : valueNode.get("NS")) {
+				set.add(element.asText());
+			}
+
+			value.setNS(set);
+		} else if (valueNode.has("BS")) {
+			List<ByteBuffer> set = new ArrayList<>();
+
+			for (JsonNode element : valueNode.get("BS")) {
+				set.add(fromBase64(element.asText()));
+			}
+
+			value.setBS(set);
+		} else {
+			throw new InvalidItemException("unsupported DynamoDB JSON value: %s", valueNode);
+		}
+
+		return value;
+	}
+
+	static String toBase64(ByteBuffer buffer) {
+		ByteBuffer readBuffer = buffer.duplicate();
+		byte[] bytes = new byte[readBuffer.remaining()];
+		readBuffer.get(bytes);
+
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+
+	static ByteBuffer fromBase64(String string) {
+		return ByteBuffer.wrap(Base64.getDecoder().decode(string));
+	}
+
+}
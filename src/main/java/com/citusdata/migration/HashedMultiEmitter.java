@@ -3,15 +3,39 @@ package com.citusdata.migration;
 import java.io.IOException;
 import java.io.Reader;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.citusdata.migration.CitusShardMap.Shard;
+import com.citusdata.migration.datamodel.Delete;
 import com.citusdata.migration.datamodel.PrimaryKeyValue;
+import com.citusdata.migration.datamodel.ScanProgress;
+import com.citusdata.migration.datamodel.StreamCheckpoint;
 import com.citusdata.migration.datamodel.TableColumn;
+import com.citusdata.migration.datamodel.TableColumnValue;
 import com.citusdata.migration.datamodel.TableEmitter;
+import com.citusdata.migration.datamodel.TableIndex;
+import com.citusdata.migration.datamodel.TableModification;
 import com.citusdata.migration.datamodel.TableRow;
+import com.citusdata.migration.datamodel.TableRowBatch;
 import com.citusdata.migration.datamodel.TableSchema;
+import com.citusdata.migration.datamodel.Upsert;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /*
  * HashedMultiEmitter can be used to perform concurrent writes across a pool of
@@ -20,21 +44,99 @@ import com.citusdata.migration.datamodel.TableSchema;
  * in the order in which they are emitted, but writes across different keys may
  * be emitted concurrently.
  * 
- * When making schema changes or bulk loading, writes to other emitters are
- * blocked.
+ * Batches of changes are split by key and applied by one writer thread per
+ * emitter, such that a single batch uses all connections.
+ *
+ * Bulk loads run concurrently on whichever emitters are not copying at the
+ * time. When making schema changes, writes to other emitters are blocked.
+ *
+ * With shard routing, rows of hash-distributed Citus tables are routed by the
+ * shard that contains them, and each emitter writes to a fixed range of
+ * shards, such that it only uses connections to a few workers.
  */
 public class HashedMultiEmitter implements TableEmitter {
 
+	/* number of batches that can wait for each emitter */
+	static final int APPLY_QUEUE_CAPACITY = 16;
+
 	final List<TableEmitter> emitters;
 	final ReadWriteLock lock;
 
+	/* emitters that are not running a COPY */
+	final BlockingQueue<TableEmitter> copyEmitters;
+
+	/* batches of modifications waiting to be applied, one queue per emitter */
+	final List<BlockingQueue<FutureTask<Void>>> applyQueues;
+
+	/* one writer thread per emitter that applies the batches in its queue */
+	final ExecutorService applyWriters;
+
+	/* connection used to fetch shard maps, or null to route by value */
+	JDBCTableEmitter shardRoutingEmitter;
+
+	/* shard routing per table, empty if the table is not routed by shard */
+	final Map<String,ShardRouting> shardRoutings;
+
+	/* connection used to add columns without blocking writes, or null */
+	JDBCTableEmitter schemaChangeEmitter;
+
+	/* connection used to fetch and clear stream checkpoints, or null */
+	JDBCTableEmitter streamCheckpointEmitter;
+
 	public HashedMultiEmitter(List<TableEmitter> emitters) {
 		this.emitters = emitters;
 		this.lock = new ReentrantReadWriteLock();
+		this.copyEmitters = new LinkedBlockingQueue<>(emitters);
+		this.applyQueues = new ArrayList<>();
+		this.applyWriters = Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("apply-writer-%d").build());
+		this.shardRoutingEmitter = null;
+		this.shardRoutings = new ConcurrentHashMap<>();
+		this.schemaChangeEmitter = null;
+		this.streamCheckpointEmitter = null;
 
 		if (emitters.isEmpty()) {
 			throw new Error("emitters cannot be empty");
 		}
+
+		for (int i = 0; i < emitters.size(); i++) {
+			final BlockingQueue<FutureTask<Void>> applyQueue = new ArrayBlockingQueue<>(APPLY_QUEUE_CAPACITY);
+			applyQueues.add(applyQueue);
+
+			applyWriters.submit(new Runnable() {
+				@Override
+				public void run() {
+					applyModifications(applyQueue);
+				}
+			});
+		}
+	}
+
+	/*
+	 * setShardRouting makes the emitter route rows of hash-distributed tables
+	 * by shard, using the given connection to fetch the shard maps.
+	 */
+	public void setShardRouting(JDBCTableEmitter shardRoutingEmitter) {
+		this.shardRoutingEmitter = shardRoutingEmitter;
+	}
+
+	/*
+	 * setSchemaChangeEmitter makes createColumn use the given connection
+	 * instead of blocking all writes while the column is added. The connection
+	 * should have a lock timeout, such that writes to the table are only
+	 * blocked briefly while the ALTER TABLE waits for its lock.
+	 */
+	public void setSchemaChangeEmitter(JDBCTableEmitter schemaChangeEmitter) {
+		this.schemaChangeEmitter = schemaChangeEmitter;
+	}
+
+	/*
+	 * setStreamCheckpointEmitter makes fetchStreamCheckpoint and
+	 * clearStreamCheckpoint use the given connection, such that starting or
+	 * finishing a stream shard does not wait for writes to other shards.
+	 */
+	public void setStreamCheckpointEmitter(JDBCTableEmitter streamCheckpointEmitter) {
+		this.streamCheckpointEmitter = streamCheckpointEmitter;
 	}
 
 	@Override
@@ -56,13 +158,28 @@ public class HashedMultiEmitter implements TableEmitter {
 		try {
 			TableEmitter emitter = emitters.get(0);
 			emitter.createTable(tableSchema);
+			shardRoutings.remove(tableSchema.tableName);
 		} finally {
 			lock.writeLock().unlock();
 		}
 	}
 
+	/*
+	 * createColumn adds a column on the schema change connection if there is
+	 * one, while writes continue on all emitters. Callers only write rows with
+	 * the new column after createColumn returns. Otherwise, all writes are
+	 * blocked while the column is added.
+	 */
 	@Override
 	public void createColumn(TableColumn column) {
+		if (schemaChangeEmitter != null) {
+			synchronized (schemaChangeEmitter) {
+				schemaChangeEmitter.createColumn(column);
+			}
+
+			return;
+		}
+
 		lock.writeLock().lock();
 
 		try {
@@ -74,6 +191,26 @@ public class HashedMultiEmitter implements TableEmitter {
 		}
 	}
 
+	/*
+	 * createIndex builds the index on an emitter that is not copying, such that
+	 * indexes can be built in parallel by calling createIndex concurrently.
+	 */
+	@Override
+	public void createIndex(TableIndex tableIndex) {
+		TableEmitter emitter = takeCopyEmitter();
+
+		lock.readLock().lock();
+
+		try {
+			synchronized (emitter) {
+				emitter.createIndex(tableIndex);
+			}
+		} finally {
+			lock.readLock().unlock();
+			copyEmitters.add(emitter);
+		}
+	}
+
 	@Override
 	public long copyFromReader(TableSchema tableSchema, Reader reader) {
 		lock.writeLock().lock();
@@ -88,44 +225,164 @@ public class HashedMultiEmitter implements TableEmitter {
 	}
 
 	@Override
-	public void upsert(TableRow tableRow) {
+	public long copyFromBatch(TableRowBatch tableRowBatch) {
+		TableEmitter emitter = takeCopyEmitter();
+
 		lock.readLock().lock();
 
 		try {
-			int emitterIndex = 0;
-			TableColumn distributionColumn = tableRow.tableSchema.getDistributionColumn();
+			synchronized (emitter) {
+				return emitter.copyFromBatch(tableRowBatch);
+			}
+		} finally {
+			lock.readLock().unlock();
+			copyEmitters.add(emitter);
+		}
+	}
+
+	@Override
+	public void finishDataLoad(TableSchema tableSchema) {
+		TableEmitter emitter = takeCopyEmitter();
 
-			if (distributionColumn != null) {
-				String distributionColumnName = distributionColumn.name;
-				String distributionColumnValue = tableRow.getValue(distributionColumnName).toString();
-				emitterIndex = Math.abs(distributionColumnValue.hashCode()) % emitters.size();
+		lock.readLock().lock();
+
+		try {
+			synchronized (emitter) {
+				emitter.finishDataLoad(tableSchema);
 			}
+		} finally {
+			lock.readLock().unlock();
+			copyEmitters.add(emitter);
+		}
+	}
 
-			TableEmitter emitter = emitters.get(emitterIndex);
+	@Override
+	public boolean hasRows(TableSchema tableSchema) {
+		TableEmitter emitter = takeCopyEmitter();
 
+		lock.readLock().lock();
+
+		try {
 			synchronized (emitter) {
-				emitter.upsert(tableRow);
+				return emitter.hasRows(tableSchema);
 			}
 		} finally {
 			lock.readLock().unlock();
+			copyEmitters.add(emitter);
+		}
+	}
+
+	/*
+	 * takeCopyEmitter waits until one of the emitters is not running a COPY.
+	 */
+	TableEmitter takeCopyEmitter() {
+		try {
+			return copyEmitters.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EmissionException(e);
 		}
 	}
 
 	@Override
-	public void delete(PrimaryKeyValue primaryKeyValue) {
+	public List<ScanProgress> fetchScanProgress(String tableName) {
+		lock.writeLock().lock();
+
+		try {
+			TableEmitter emitter = emitters.get(0);
+
+			return emitter.fetchScanProgress(tableName);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void saveScanProgress(ScanProgress scanProgress) {
+		TableEmitter emitter = takeCopyEmitter();
+
+		lock.readLock().lock();
+
+		try {
+			synchronized (emitter) {
+				emitter.saveScanProgress(scanProgress);
+			}
+		} finally {
+			lock.readLock().unlock();
+			copyEmitters.add(emitter);
+		}
+	}
+
+	@Override
+	public void clearScanProgress(String tableName) {
+		lock.writeLock().lock();
+
+		try {
+			TableEmitter emitter = emitters.get(0);
+
+			emitter.clearScanProgress(tableName);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String fetchStreamCheckpoint(String tableName, String shardId) {
+		if (streamCheckpointEmitter != null) {
+			return streamCheckpointEmitter.fetchStreamCheckpoint(tableName, shardId);
+		}
+
+		/* checkpoints of a shard are only written once it has been fetched */
+		lock.readLock().lock();
+
+		try {
+			TableEmitter emitter = emitters.get(0);
+
+			return emitter.fetchStreamCheckpoint(tableName, shardId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void clearStreamCheckpoint(String tableName, String shardId) {
+		if (streamCheckpointEmitter != null) {
+			streamCheckpointEmitter.clearStreamCheckpoint(tableName, shardId);
+			return;
+		}
+
 		lock.readLock().lock();
 
 		try {
-			int emitterIndex = 0;
-			TableColumn distributionColumn = primaryKeyValue.tableSchema.getDistributionColumn();
+			TableEmitter emitter = emitters.get(0);
+
+			emitter.clearStreamCheckpoint(tableName, shardId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
 
-			if (distributionColumn != null) {
-				String distributionColumnName = distributionColumn.name;
-				String distributionColumnValue = primaryKeyValue.getValue(distributionColumnName).toString();
-				emitterIndex = Math.abs(distributionColumnValue.hashCode()) % emitters.size();
+	@Override
+	public void upsert(TableRow tableRow) {
+		lock.readLock().lock();
+
+		try {
+			TableEmitter emitter = emitters.get(emitterIndex(tableRow));
+
+			synchronized (emitter) {
+				emitter.upsert(tableRow);
 			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
 
-			TableEmitter emitter = emitters.get(emitterIndex);
+	@Override
+	public void delete(PrimaryKeyValue primaryKeyValue) {
+		lock.readLock().lock();
+
+		try {
+			TableEmitter emitter = emitters.get(emitterIndex(primaryKeyValue));
 
 			synchronized (emitter) {
 				emitter.delete(primaryKeyValue);
@@ -135,8 +392,197 @@ public class HashedMultiEmitter implements TableEmitter {
 		}
 	}
 
+	/*
+	 * applyModifications splits the modifications by emitter and puts each
+	 * emitter's share in the queue of its writer, such that the modifications
+	 * are applied over all connections in parallel. It returns once all
+	 * writers have applied their share, such that the caller can checkpoint.
+	 * Modifications to the same key go to the same writer, which applies them
+	 * in order.
+	 *
+	 * If a stream checkpoint is given, every writer stores it as its own
+	 * checkpoint along with its share, even if the share is empty.
+	 */
+	@Override
+	public void applyModifications(List<TableModification> modifications, StreamCheckpoint checkpoint) {
+		List<List<TableModification>> modificationsPerEmitter = new ArrayList<>();
+
+		for (int i = 0; i < emitters.size(); i++) {
+			modificationsPerEmitter.add(new ArrayList<TableModification>());
+		}
+
+		for (TableModification modification : modifications) {
+			if (modification instanceof Upsert) {
+				TableRow tableRow = ((Upsert) modification).getNewRow();
+				modificationsPerEmitter.get(emitterIndex(tableRow)).add(modification);
+			} else if (modification instanceof Delete) {
+				PrimaryKeyValue primaryKeyValue = ((Delete) modification).getKeyValue();
+				modificationsPerEmitter.get(emitterIndex(primaryKeyValue)).add(modification);
+			}
+		}
+
+		List<FutureTask<Void>> applyTasks = new ArrayList<>();
+
+		try {
+			for (int emitterIndex = 0; emitterIndex < emitters.size(); emitterIndex++) {
+				final List<TableModification> emitterModifications = modificationsPerEmitter.get(emitterIndex);
+
+				if (emitterModifications.isEmpty() && checkpoint == null) {
+					continue;
+				}
+
+				final TableEmitter emitter = emitters.get(emitterIndex);
+				final StreamCheckpoint emitterCheckpoint = checkpoint != null ? checkpoint.forWriter(emitterIndex) : null;
+
+				FutureTask<Void> applyTask = new FutureTask<>(new Callable<Void>() {
+					@Override
+					public Void call() {
+						lock.readLock().lock();
+
+						try {
+							synchronized (emitter) {
+								emitter.applyModifications(emitterModifications, emitterCheckpoint);
+							}
+						} finally {
+							lock.readLock().unlock();
+						}
+
+						return null;
+					}
+				});
+
+				applyQueues.get(emitterIndex).put(applyTask);
+				applyTasks.add(applyTask);
+			}
+
+			/* wait for all writers to finish their share, even if one fails */
+			ExecutionException firstFailure = null;
+
+			for (FutureTask<Void> applyTask : applyTasks) {
+				try {
+					applyTask.get();
+				} catch (ExecutionException e) {
+					if (firstFailure == null) {
+						firstFailure = e;
+					}
+				}
+			}
+
+			if (firstFailure != null) {
+				throw firstFailure;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EmissionException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof EmissionException) {
+				throw (EmissionException) e.getCause();
+			}
+
+			throw new EmissionException(e);
+		}
+	}
+
+	/*
+	 * applyModifications applies modifications from the queue until the
+	 * emitter is closed.
+	 */
+	void applyModifications(BlockingQueue<FutureTask<Void>> applyQueue) {
+		try {
+			while (true) {
+				applyQueue.take().run();
+			}
+		} catch (InterruptedException e) {
+			/* emitter is closing */
+		}
+	}
+
+	int emitterIndex(TableRow tableRow) {
+		TableColumn distributionColumn = tableRow.tableSchema.getDistributionColumn();
+
+		if (distributionColumn == null) {
+			return emitterIndex(tableRow.getPrimaryKeyValue());
+		}
+
+		return emitterIndex(tableRow.tableSchema, distributionColumn, tableRow.getValue(distributionColumn.name));
+	}
+
+	int emitterIndex(PrimaryKeyValue primaryKeyValue) {
+		TableColumn distributionColumn = primaryKeyValue.tableSchema.getDistributionColumn();
+
+		if (distributionColumn == null) {
+			/* spread writes to regular tables over the emitters by key */
+			return Math.abs(primaryKeyValue.toValues().hashCode() % emitters.size());
+		}
+
+		return emitterIndex(primaryKeyValue.tableSchema, distributionColumn, primaryKeyValue.getValue(distributionColumn.name));
+	}
+
+	/*
+	 * emitterIndex returns the index of the emitter for rows with the given
+	 * distribution column value, which is the emitter of the shard that
+	 * contains the value when using shard routing.
+	 */
+	int emitterIndex(TableSchema tableSchema, TableColumn distributionColumn, TableColumnValue distributionColumnValue) {
+		if (shardRoutingEmitter != null) {
+			ShardRouting shardRouting = getShardRouting(tableSchema, distributionColumn);
+
+			if (!shardRouting.isEmpty()) {
+				int hashValue = CitusHash.hashValue(distributionColumnValue, distributionColumn.type);
+				Integer emitterIndex = shardRouting.emitterIndexes.get(shardRouting.shardMap.findShard(hashValue));
+
+				if (emitterIndex != null) {
+					return emitterIndex;
+				}
+			}
+		}
+
+		Object datum = distributionColumnValue.datum;
+		int hashCode = datum instanceof byte[] ? Arrays.hashCode((byte[]) datum) : datum.toString().hashCode();
+
+		return Math.abs(hashCode % emitters.size());
+	}
+
+	ShardRouting getShardRouting(TableSchema tableSchema, TableColumn distributionColumn) {
+		String tableName = tableSchema.tableName;
+		ShardRouting shardRouting = shardRoutings.get(tableName);
+
+		if (shardRouting != null) {
+			return shardRouting;
+		}
+
+		/* fetch outside the map, concurrent callers may both fetch the same shard map */
+		CitusShardMap shardMap;
+
+		if (CitusHash.isSupported(distributionColumn.type)) {
+			shardMap = shardRoutingEmitter.fetchShardMap(tableName);
+		} else {
+			shardMap = new CitusShardMap(tableName);
+		}
+
+		shardRouting = new ShardRouting(shardMap, emitters.size());
+
+		ShardRouting existingRouting = shardRoutings.putIfAbsent(tableName, shardRouting);
+
+		return existingRouting != null ? existingRouting : shardRouting;
+	}
+
 	@Override
 	public void close() {
+		applyWriters.shutdownNow();
+
+		if (shardRoutingEmitter != null) {
+			shardRoutingEmitter.close();
+		}
+
+		if (schemaChangeEmitter != null) {
+			schemaChangeEmitter.close();
+		}
+
+		if (streamCheckpointEmitter != null) {
+			streamCheckpointEmitter.close();
+		}
+
 		lock.writeLock().lock();
 
 		try {
@@ -148,4 +594,35 @@ public class HashedMultiEmitter implements TableEmitter {
 		}
 	}
 
+	/*
+	 * ShardRouting assigns each shard of a table to an emitter. The shards are
+	 * ordered by the worker of their first placement and each emitter gets a
+	 * contiguous range of them, such that each emitter writes to as few
+	 * workers as possible.
+	 */
+	static class ShardRouting {
+
+		final CitusShardMap shardMap;
+		final Map<Shard,Integer> emitterIndexes;
+
+		ShardRouting(CitusShardMap shardMap, int numEmitters) {
+			this.shardMap = shardMap;
+			this.emitterIndexes = new HashMap<>();
+
+			List<Shard> shards = new ArrayList<>(shardMap.getShards());
+
+			shards.sort(Comparator.
+					comparing((Shard shard) -> shard.placements.isEmpty() ? "" : shard.placements.get(0).getNodeKey()).
+					thenComparingLong(shard -> shard.shardId));
+
+			for (int shardIndex = 0; shardIndex < shards.size(); shardIndex++) {
+				emitterIndexes.put(shards.get(shardIndex), (int) ((long) shardIndex * numEmitters / shards.size()));
+			}
+		}
+
+		boolean isEmpty() {
+			return shardMap.isEmpty();
+		}
+	}
+
 }
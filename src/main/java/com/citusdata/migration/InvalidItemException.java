@@ -0,0 +1,21 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+public class InvalidItemException extends MigrationException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 3916384217532604120L;
+
+	public InvalidItemException(Exception e) {
+		super(e);
+	}
+
+	public InvalidItemException(String message, Object... args) {
+		super(message, args);
+	}
+
+}
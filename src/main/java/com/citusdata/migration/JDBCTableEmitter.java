@@ -3,25 +3,48 @@
  */
 package com.citusdata.migration;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.math.BigInteger;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.postgresql.PGStatement;
+import org.postgresql.copy.CopyIn;
 import org.postgresql.copy.CopyManager;
 import org.postgresql.core.BaseConnection;
 
+import com.citusdata.migration.datamodel.CopyBuffer;
+import com.citusdata.migration.datamodel.CopyFormat;
+import com.citusdata.migration.datamodel.Delete;
 import com.citusdata.migration.datamodel.PrimaryKeyValue;
+import com.citusdata.migration.datamodel.ScanProgress;
+import com.citusdata.migration.datamodel.StreamCheckpoint;
 import com.citusdata.migration.datamodel.TableColumn;
 import com.citusdata.migration.datamodel.TableColumnType;
+import com.citusdata.migration.datamodel.TableColumnValue;
 import com.citusdata.migration.datamodel.TableEmitter;
+import com.citusdata.migration.datamodel.TableIndex;
+import com.citusdata.migration.datamodel.TableModification;
 import com.citusdata.migration.datamodel.TableRow;
+import com.citusdata.migration.datamodel.TableRowBatch;
 import com.citusdata.migration.datamodel.TableSchema;
+import com.citusdata.migration.datamodel.Upsert;
 
 /**
  * @author marco
@@ -29,6 +52,17 @@ import com.citusdata.migration.datamodel.TableSchema;
  */
 public class JDBCTableEmitter implements TableEmitter {
 
+	private static final Log LOG = LogFactory.getLog(JDBCTableEmitter.class);
+
+	/* SQLSTATE of lock_not_available, raised when the lock timeout expires */
+	static final String LOCK_NOT_AVAILABLE = "55P03";
+
+	/* pause between attempts to lock a table for a schema change */
+	static final long SCHEMA_CHANGE_RETRY_MILLIS = 500;
+
+	/* number of attempts after which a schema change fails */
+	static final int MAX_SCHEMA_CHANGE_ATTEMPTS = 120;
+
 	final String DESCRIBE_TABLE_SQL = ""
 			+ "SELECT "
 			+ "  c.column_name, "
@@ -58,6 +92,9 @@ public class JDBCTableEmitter implements TableEmitter {
 			+ "ORDER BY"
 			+ "  ordinal_position";
 
+	final String IS_UNLOGGED_SQL = ""
+			+ "SELECT relpersistence = 'u' FROM pg_class WHERE oid = ?::regclass";
+
 	final String HAS_CITUS_SQL = ""
 			+ "SELECT 1 FROM pg_extension WHERE extname = 'citus'";
 
@@ -69,10 +106,140 @@ public class JDBCTableEmitter implements TableEmitter {
 			+ "WHERE "
 			+ "  logicalrelid = ?::regclass";	
 
+	final String SHARD_PLACEMENTS_SQL = ""
+			+ "SELECT "
+			+ "  s.shardid, "
+			+ "  shard_name(s.logicalrelid, s.shardid) AS shard_name, "
+			+ "  s.shardminvalue::int AS min_value, "
+			+ "  s.shardmaxvalue::int AS max_value, "
+			+ "  n.nodename, "
+			+ "  n.nodeport "
+			+ "FROM "
+			+ "  pg_dist_partition p "
+			+ "JOIN "
+			+ "  pg_dist_shard s ON (p.logicalrelid = s.logicalrelid) "
+			+ "JOIN "
+			+ "  pg_dist_placement pl ON (s.shardid = pl.shardid) "
+			+ "JOIN "
+			+ "  pg_dist_node n ON (pl.groupid = n.groupid) "
+			+ "WHERE "
+			+ "  p.logicalrelid = ?::regclass AND "
+			+ "  p.partmethod = 'h' AND "
+			+ "  pl.shardstate = 1 AND "
+			+ "  n.noderole = 'primary' "
+			+ "ORDER BY "
+			+ "  min_value, s.shardid";
+
+	final String CREATE_STREAM_CHECKPOINTS_TABLE_SQL = ""
+			+ "CREATE TABLE IF NOT EXISTS podyn_stream_checkpoints ("
+			+ "  table_name text NOT NULL, "
+			+ "  shard_id text NOT NULL, "
+			+ "  writer int NOT NULL, "
+			+ "  sequence_number numeric NOT NULL, "
+			+ "  updated_at timestamptz NOT NULL DEFAULT now(), "
+			+ "  PRIMARY KEY (table_name, shard_id, writer)"
+			+ ")";
+
+	final String INIT_STREAM_CHECKPOINTS_SQL = ""
+			+ "INSERT INTO podyn_stream_checkpoints "
+			+ "  (table_name, shard_id, writer, sequence_number) "
+			+ "SELECT "
+			+ "  ?, ?, writer, 0 "
+			+ "FROM "
+			+ "  generate_series(0, ? - 1) writer "
+			+ "ON CONFLICT (table_name, shard_id, writer) DO NOTHING";
+
+	final String FETCH_STREAM_CHECKPOINT_SQL = ""
+			+ "SELECT "
+			+ "  min(sequence_number)::text AS sequence_number "
+			+ "FROM "
+			+ "  podyn_stream_checkpoints "
+			+ "WHERE "
+			+ "  table_name = ? AND shard_id = ?";
+
+	final String CLEAR_STREAM_CHECKPOINT_SQL = ""
+			+ "DELETE FROM podyn_stream_checkpoints WHERE table_name = ? AND shard_id = ?";
+
+	final String SAVE_STREAM_CHECKPOINT_SQL = ""
+			+ "INSERT INTO podyn_stream_checkpoints "
+			+ "  (table_name, shard_id, writer, sequence_number) "
+			+ "VALUES "
+			+ "  (?, ?, ?, ?::numeric) "
+			+ "ON CONFLICT (table_name, shard_id, writer) DO UPDATE SET "
+			+ "  sequence_number = EXCLUDED.sequence_number, "
+			+ "  updated_at = now()";
+
+	final String CREATE_SCAN_PROGRESS_TABLE_SQL = ""
+			+ "CREATE TABLE IF NOT EXISTS podyn_scan_progress ("
+			+ "  table_name text NOT NULL, "
+			+ "  segment int NOT NULL, "
+			+ "  total_segments int NOT NULL, "
+			+ "  last_evaluated_key text, "
+			+ "  completed boolean NOT NULL, "
+			+ "  updated_at timestamptz NOT NULL DEFAULT now(), "
+			+ "  PRIMARY KEY (table_name, segment)"
+			+ ")";
+
+	final String FETCH_SCAN_PROGRESS_SQL = ""
+			+ "SELECT "
+			+ "  segment, total_segments, last_evaluated_key, completed "
+			+ "FROM "
+			+ "  podyn_scan_progress "
+			+ "WHERE "
+			+ "  table_name = ? "
+			+ "ORDER BY "
+			+ "  segment";
+
+	final String CLEAR_SCAN_PROGRESS_SQL = ""
+			+ "DELETE FROM podyn_scan_progress WHERE table_name = ?";
+
+	final String SAVE_SCAN_PROGRESS_SQL = ""
+			+ "INSERT INTO podyn_scan_progress "
+			+ "  (table_name, segment, total_segments, last_evaluated_key, completed) "
+			+ "VALUES "
+			+ "  (?, ?, ?, ?, ?) "
+			+ "ON CONFLICT (table_name, segment) DO UPDATE SET "
+			+ "  total_segments = EXCLUDED.total_segments, "
+			+ "  last_evaluated_key = EXCLUDED.last_evaluated_key, "
+			+ "  completed = EXCLUDED.completed, "
+			+ "  updated_at = now()";
+
 	final Connection currentConnection;
+	final CopyInBuffer copyBuffer;
+
+	CopyFormat copyFormat;
+	String maintenanceWorkMem;
+	int maxBatchRows;
+
+	/* prepared upsert and delete statements per table schema */
+	final Map<TableSchema,PreparedModifications> preparedModifications;
+	int nextStagingTableId;
+
+	/* whether to apply modifications by merging them from staging tables */
+	boolean mergeModifications;
+
+	/* whether to apply modifications in transactions of at most maxTransactionSize */
+	boolean transactionalModifications;
+	int maxTransactionSize;
+
+	/* number of writers that store stream checkpoints for the same shard */
+	int streamCheckpointWriters;
+
+	/* lock_timeout of the connection, schema changes are retried if it is set */
+	int lockTimeoutMillis;
+
 	final PreparedStatement describeTableStatement;
+	final PreparedStatement isUnloggedStatement;
 	final PreparedStatement hasCitusStatement;
 	final PreparedStatement distributionColumnStatement;
+	final PreparedStatement shardPlacementsStatement;
+	final PreparedStatement fetchScanProgressStatement;
+	final PreparedStatement clearScanProgressStatement;
+	final PreparedStatement saveScanProgressStatement;
+	final PreparedStatement initStreamCheckpointsStatement;
+	final PreparedStatement fetchStreamCheckpointStatement;
+	final PreparedStatement clearStreamCheckpointStatement;
+	final PreparedStatement saveStreamCheckpointStatement;
 
 	public JDBCTableEmitter(String url) throws SQLException {
 		this(DriverManager.getConnection(url));
@@ -80,9 +247,97 @@ public class JDBCTableEmitter implements TableEmitter {
 	
 	public JDBCTableEmitter(Connection connection) throws SQLException {
 		this.currentConnection = connection;
+		this.copyBuffer = new CopyInBuffer();
+		this.copyFormat = CopyFormat.text;
+		this.maintenanceWorkMem = null;
+		this.maxBatchRows = 100;
+		this.preparedModifications = new HashMap<>();
+		this.nextStagingTableId = 0;
+		this.mergeModifications = false;
+		this.transactionalModifications = false;
+		this.maxTransactionSize = 10000;
+		this.streamCheckpointWriters = 1;
+		this.lockTimeoutMillis = 0;
 		this.describeTableStatement = currentConnection.prepareStatement(DESCRIBE_TABLE_SQL);
+		this.isUnloggedStatement = currentConnection.prepareStatement(IS_UNLOGGED_SQL);
 		this.hasCitusStatement = currentConnection.prepareStatement(HAS_CITUS_SQL);
 		this.distributionColumnStatement = currentConnection.prepareStatement(DISTRIBUTION_COLUMN_SQL);
+		this.shardPlacementsStatement = currentConnection.prepareStatement(SHARD_PLACEMENTS_SQL);
+		this.fetchScanProgressStatement = currentConnection.prepareStatement(FETCH_SCAN_PROGRESS_SQL);
+		this.clearScanProgressStatement = currentConnection.prepareStatement(CLEAR_SCAN_PROGRESS_SQL);
+		this.saveScanProgressStatement = currentConnection.prepareStatement(SAVE_SCAN_PROGRESS_SQL);
+		this.initStreamCheckpointsStatement = currentConnection.prepareStatement(INIT_STREAM_CHECKPOINTS_SQL);
+		this.fetchStreamCheckpointStatement = currentConnection.prepareStatement(FETCH_STREAM_CHECKPOINT_SQL);
+		this.clearStreamCheckpointStatement = currentConnection.prepareStatement(CLEAR_STREAM_CHECKPOINT_SQL);
+		this.saveStreamCheckpointStatement = currentConnection.prepareStatement(SAVE_STREAM_CHECKPOINT_SQL);
+	}
+
+	public void setCopyFormat(CopyFormat copyFormat) {
+		this.copyFormat = copyFormat;
+	}
+
+	/*
+	 * setMaintenanceWorkMem sets the maintenance_work_mem used when building
+	 * indexes, e.g. 1GB, or null to use the server setting.
+	 */
+	public void setMaintenanceWorkMem(String maintenanceWorkMem) {
+		this.maintenanceWorkMem = maintenanceWorkMem;
+	}
+
+	/*
+	 * setMaxBatchRows sets the maximum number of rows that applyModifications
+	 * upserts or deletes in a single command.
+	 */
+	public void setMaxBatchRows(int maxBatchRows) {
+		this.maxBatchRows = maxBatchRows;
+	}
+
+	/*
+	 * setMergeModifications makes applyModifications copy the modifications
+	 * into staging tables and merge them into the table in one transaction,
+	 * rather than running upserts and deletes.
+	 */
+	public void setMergeModifications(boolean mergeModifications) {
+		this.mergeModifications = mergeModifications;
+	}
+
+	/*
+	 * setTransactionalModifications makes applyModifications apply the
+	 * modifications in a single transaction, rather than committing every
+	 * command separately.
+	 */
+	public void setTransactionalModifications(boolean transactionalModifications) {
+		this.transactionalModifications = transactionalModifications;
+	}
+
+	/*
+	 * setMaxTransactionSize sets the maximum number of modifications that
+	 * applyModifications applies in a single transaction, larger lists are
+	 * applied in several transactions.
+	 */
+	public void setMaxTransactionSize(int maxTransactionSize) {
+		this.maxTransactionSize = maxTransactionSize;
+	}
+
+	/*
+	 * setStreamCheckpointWriters sets the number of emitters that apply the
+	 * changes of a shard in parallel, each storing its own stream checkpoint.
+	 */
+	public void setStreamCheckpointWriters(int streamCheckpointWriters) {
+		this.streamCheckpointWriters = streamCheckpointWriters;
+	}
+
+	/*
+	 * setLockTimeout sets the lock_timeout of the connection, after which
+	 * createColumn gives up on locking the table and tries again.
+	 */
+	public synchronized void setLockTimeout(int lockTimeoutMillis) {
+		try (Statement statement = currentConnection.createStatement()) {
+			statement.execute("SET lock_timeout = " + lockTimeoutMillis);
+			this.lockTimeoutMillis = lockTimeoutMillis;
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
 	}
 
 	public synchronized TableSchema fetchSchema(String tableName) {
@@ -94,6 +349,7 @@ public class JDBCTableEmitter implements TableEmitter {
 			if (describeTableResults.next()) {
 				TableSchema tableSchema = new TableSchema(tableName);
 				List<String> primaryKeyColumns = new ArrayList<>();
+				List<String> textOnlyColumns = new ArrayList<>();
 
 				do {
 					String columnName = describeTableResults.getString("column_name");
@@ -105,6 +361,10 @@ public class JDBCTableEmitter implements TableEmitter {
 					TableColumn column = tableSchema.addColumn(columnName, columnType);
 					column.notNull = !isNullable;
 
+					if (!TableColumnType.hasBinaryCopyEncoding(typeName)) {
+						textOnlyColumns.add(String.format("%s (%s)", columnName, typeName));
+					}
+
 					if (isPrimaryKey) {
 						primaryKeyColumns.add(column.name);
 					}
@@ -112,6 +372,16 @@ public class JDBCTableEmitter implements TableEmitter {
 				} while(describeTableResults.next());
 
 				tableSchema.setPrimaryKey(primaryKeyColumns);
+				tableSchema.setUnlogged(isUnlogged(tableName));
+
+				if (!textOnlyColumns.isEmpty()) {
+					tableSchema.setBinaryCopySupported(false);
+
+					if (copyFormat == CopyFormat.binary) {
+						LOG.info(String.format("Using text COPY format for table %s, since the following columns have no binary encoding: %s",
+								tableName, String.join(", ", textOnlyColumns)));
+					}
+				}
 
 				if (hasCitus()) {
 					String distributionColumnName = getDistributionColumn(tableName);
@@ -130,6 +400,17 @@ public class JDBCTableEmitter implements TableEmitter {
 		}
 	}
 
+	public synchronized boolean isUnlogged(String tableName) {
+		try {
+			isUnloggedStatement.setString(1, TableSchema.quoteIdentifier(tableName));
+
+			ResultSet isUnloggedResults = isUnloggedStatement.executeQuery();
+			return isUnloggedResults.next() && isUnloggedResults.getBoolean(1);
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
 	public synchronized boolean hasCitus() {
 		try {
 			ResultSet hasCitusResults = hasCitusStatement.executeQuery();
@@ -157,6 +438,58 @@ public class JDBCTableEmitter implements TableEmitter {
 		}
 	}
 
+	/*
+	 * fetchShardMap returns the shards and active placements of a hash-distributed
+	 * table, the shard map is empty if the table is not hash-distributed.
+	 */
+	public synchronized CitusShardMap fetchShardMap(String tableName) {
+		try {
+			CitusShardMap shardMap = new CitusShardMap(tableName);
+
+			shardPlacementsStatement.setString(1, TableSchema.quoteIdentifier(tableName));
+
+			ResultSet shardPlacementResults = shardPlacementsStatement.executeQuery();
+
+			while (shardPlacementResults.next()) {
+				long shardId = shardPlacementResults.getLong("shardid");
+				String shardName = shardPlacementResults.getString("shard_name");
+				int minValue = shardPlacementResults.getInt("min_value");
+				int maxValue = shardPlacementResults.getInt("max_value");
+				String nodeName = shardPlacementResults.getString("nodename");
+				int nodePort = shardPlacementResults.getInt("nodeport");
+
+				shardMap.addPlacement(shardId, shardName, minValue, maxValue, nodeName, nodePort);
+			}
+
+			return shardMap;
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
+	/*
+	 * workerHash returns the hash that Citus computes for the value when stored
+	 * in a column of the given type.
+	 */
+	public synchronized int workerHash(TableColumnValue value, TableColumnType columnType) {
+		String query = "SELECT worker_hash(?::" + columnType + ")";
+
+		try (PreparedStatement statement = currentConnection.prepareStatement(query)) {
+			if (columnType == TableColumnType.bytea && value.datum instanceof byte[]) {
+				statement.setBytes(1, (byte[]) value.datum);
+			} else {
+				statement.setString(1, value.toString());
+			}
+
+			ResultSet workerHashResult = statement.executeQuery();
+			workerHashResult.next();
+
+			return workerHashResult.getInt(1);
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
 	public synchronized void createTable(TableSchema tableSchema) throws EmissionException {
 		try {
 			Statement statement = currentConnection.createStatement();
@@ -169,6 +502,42 @@ public class JDBCTableEmitter implements TableEmitter {
 		}
 	}
 
+	/*
+	 * createIndex builds an index if it does not exist yet, with the configured
+	 * maintenance_work_mem for the duration of the build.
+	 */
+	public synchronized void createIndex(TableIndex tableIndex) {
+		try (Statement statement = currentConnection.createStatement()) {
+			currentConnection.setAutoCommit(false);
+
+			if (maintenanceWorkMem != null) {
+				try (PreparedStatement setStatement = currentConnection.prepareStatement(
+						"SELECT set_config('maintenance_work_mem', ?, true)")) {
+					setStatement.setString(1, maintenanceWorkMem);
+					setStatement.execute();
+				}
+			}
+
+			statement.execute(tableIndex.toDDL(true));
+
+			currentConnection.commit();
+		} catch (SQLException e) {
+			try {
+				currentConnection.rollback();
+			} catch (SQLException rollbackException) {
+				e.addSuppressed(rollbackException);
+			}
+
+			throw new EmissionException(e);
+		} finally {
+			try {
+				currentConnection.setAutoCommit(true);
+			} catch (SQLException e) {
+				throw new EmissionException(e);
+			}
+		}
+	}
+
 	public synchronized long copyFromReader(TableSchema tableSchema, Reader reader) {
 		try {
 			String query = tableSchema.copyFromStdin();
@@ -181,20 +550,401 @@ public class JDBCTableEmitter implements TableEmitter {
 		}
 	}
 
-	public synchronized void createColumn(TableColumn column) {
+	/*
+	 * copyFromBatch streams the rows in the batch directly into COPY through a
+	 * reusable buffer, rather than first building the whole COPY input. If the
+	 * batch carries scan progress, it is stored in the same transaction.
+	 */
+	public synchronized long copyFromBatch(TableRowBatch tableRowBatch) {
+		ScanProgress scanProgress = tableRowBatch.getScanProgress();
+
 		try {
-			String query = column.toAlterTableAddColumn();
-			Statement statement = currentConnection.createStatement();
-			statement.execute(query);
+			if (scanProgress != null) {
+				currentConnection.setAutoCommit(false);
+			}
+
+			long numRows = copyRows(tableRowBatch.copyFromStdin(copyFormat(tableRowBatch)), tableRowBatch);
+
+			if (scanProgress != null) {
+				storeScanProgress(scanProgress);
+				currentConnection.commit();
+			}
+
+			return numRows;
+		} catch (Exception e) {
+			if (scanProgress != null) {
+				try {
+					currentConnection.rollback();
+				} catch (SQLException rollbackException) {
+					e.addSuppressed(rollbackException);
+				}
+			}
+
+			throw new EmissionException(e);
+		} finally {
+			if (scanProgress != null) {
+				try {
+					currentConnection.setAutoCommit(true);
+				} catch (SQLException e) {
+					throw new EmissionException(e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * finishDataLoad makes a table that was loaded as UNLOGGED crash-safe, and
+	 * freezes and analyzes it, such that the new rows do not need to be frozen
+	 * later by an anti-wraparound vacuum.
+	 */
+	public synchronized void finishDataLoad(TableSchema tableSchema) {
+		if (!tableSchema.isUnlogged()) {
+			return;
+		}
+
+		try (Statement statement = currentConnection.createStatement()) {
+			statement.execute(tableSchema.setLoggedDDL());
+			statement.execute("VACUUM (FREEZE, ANALYZE) " + tableSchema.getQualifiedTableName());
+
+			tableSchema.setUnlogged(false);
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
+	public synchronized boolean hasRows(TableSchema tableSchema) {
+		String query = "SELECT EXISTS (SELECT 1 FROM " + tableSchema.getQualifiedTableName() + ")";
+
+		try (Statement statement = currentConnection.createStatement()) {
+			ResultSet hasRowsResult = statement.executeQuery(query);
+			return hasRowsResult.next() && hasRowsResult.getBoolean(1);
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
+	/*
+	 * copyIntoShards copies batches directly into the shards of a distributed
+	 * table in a single transaction, which is left open until it is ended by
+	 * commitShardCopy or rollbackShardCopy. If skipExistingRows is set, the
+	 * rows are first copied into a temporary table and rows whose key already
+	 * exists in the shard are skipped.
+	 */
+	public synchronized long copyIntoShards(Map<String, TableRowBatch> shardBatches, boolean skipExistingRows) {
+		long numRows = 0;
+
+		try (Statement statement = currentConnection.createStatement()) {
+			currentConnection.setAutoCommit(false);
+
+			for (Map.Entry<String, TableRowBatch> shardBatch : shardBatches.entrySet()) {
+				String shardName = shardBatch.getKey();
+				TableRowBatch tableRowBatch = shardBatch.getValue();
+
+				if (skipExistingRows) {
+					String columnList = TableSchema.columnList(tableRowBatch.getColumns());
+
+					statement.execute("CREATE TEMPORARY TABLE podyn_copy_stage ON COMMIT DROP AS "
+							+ "SELECT " + columnList + " FROM " + shardName + " WITH NO DATA");
+
+					copyRows(tableRowBatch.copyFromStdin("podyn_copy_stage", copyFormat(tableRowBatch)), tableRowBatch);
+
+					numRows += statement.executeUpdate("INSERT INTO " + shardName + " (" + columnList + ") "
+							+ "SELECT " + columnList + " FROM podyn_copy_stage ON CONFLICT DO NOTHING");
+
+					statement.execute("DROP TABLE podyn_copy_stage");
+				} else {
+					numRows += copyRows(tableRowBatch.copyFromStdin(shardName, copyFormat(tableRowBatch)), tableRowBatch);
+				}
+			}
+
+			return numRows;
+		} catch (Exception e) {
+			EmissionException copyException = new EmissionException(e);
+
+			try {
+				rollbackShardCopy();
+			} catch (RuntimeException rollbackException) {
+				copyException.addSuppressed(rollbackException);
+			}
+
+			throw copyException;
+		}
+	}
+
+	/*
+	 * commitShardCopy commits the transaction of copyIntoShards.
+	 */
+	public synchronized void commitShardCopy() {
+		try {
+			currentConnection.commit();
+		} catch (SQLException e) {
+			EmissionException commitException = new EmissionException(e);
+
+			try {
+				rollbackShardCopy();
+			} catch (RuntimeException rollbackException) {
+				commitException.addSuppressed(rollbackException);
+			}
+
+			throw commitException;
+		}
+
+		try {
+			currentConnection.setAutoCommit(true);
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
+	/*
+	 * rollbackShardCopy aborts the transaction of copyIntoShards.
+	 */
+	public synchronized void rollbackShardCopy() {
+		try {
+			currentConnection.rollback();
+			currentConnection.setAutoCommit(true);
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
+	/*
+	 * copyFormat returns the COPY format to use for the batch, which is text
+	 * if the table has columns that cannot be written in binary format.
+	 */
+	CopyFormat copyFormat(TableRowBatch tableRowBatch) {
+		if (copyFormat == CopyFormat.binary && !tableRowBatch.tableSchema.isBinaryCopySupported()) {
+			return CopyFormat.text;
+		}
+
+		return copyFormat;
+	}
+
+	/*
+	 * copyRows streams the rows in the batch into the given COPY command
+	 * through a reusable buffer, rather than first building the whole COPY
+	 * input.
+	 */
+	long copyRows(String query, TableRowBatch tableRowBatch) throws SQLException, IOException {
+		CopyIn copyIn = null;
+
+		try {
+			CopyManager copyManager = new CopyManager((BaseConnection) currentConnection);
+
+			copyIn = copyManager.copyIn(query);
+			copyBuffer.startCopy(copyIn);
+
+			if (copyFormat(tableRowBatch) == CopyFormat.binary) {
+				tableRowBatch.writeBinaryCopyInput(copyBuffer);
+			} else {
+				tableRowBatch.writeCopyInput(copyBuffer);
+			}
+
+			copyBuffer.flush();
+
+			return copyIn.endCopy();
+		} finally {
+			if (copyIn != null && copyIn.isActive()) {
+				try {
+					copyIn.cancelCopy();
+				} catch (SQLException cancelException) {
+				}
+			}
+
+			copyBuffer.reset();
+		}
+	}
+
+	public synchronized void saveScanProgress(ScanProgress scanProgress) {
+		try {
+			createScanProgressTable();
+			storeScanProgress(scanProgress);
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
+	void storeScanProgress(ScanProgress scanProgress) throws SQLException {
+		saveScanProgressStatement.setString(1, scanProgress.tableName);
+		saveScanProgressStatement.setInt(2, scanProgress.segment);
+		saveScanProgressStatement.setInt(3, scanProgress.totalSegments);
+		saveScanProgressStatement.setString(4, scanProgress.lastEvaluatedKey);
+		saveScanProgressStatement.setBoolean(5, scanProgress.completed);
+		saveScanProgressStatement.executeUpdate();
+	}
+
+	public synchronized List<ScanProgress> fetchScanProgress(String tableName) {
+		try {
+			createScanProgressTable();
+
+			fetchScanProgressStatement.setString(1, tableName);
+
+			ResultSet scanProgressResults = fetchScanProgressStatement.executeQuery();
+			List<ScanProgress> scanProgressList = new ArrayList<>();
+
+			while (scanProgressResults.next()) {
+				int segment = scanProgressResults.getInt("segment");
+				int totalSegments = scanProgressResults.getInt("total_segments");
+				String lastEvaluatedKey = scanProgressResults.getString("last_evaluated_key");
+				boolean completed = scanProgressResults.getBoolean("completed");
+
+				scanProgressList.add(new ScanProgress(tableName, segment, totalSegments, lastEvaluatedKey, completed));
+			}
+
+			return scanProgressList;
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
+	public synchronized void clearScanProgress(String tableName) {
+		try {
+			createScanProgressTable();
+
+			clearScanProgressStatement.setString(1, tableName);
+			clearScanProgressStatement.executeUpdate();
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
+	/*
+	 * createStreamCheckpointsTable creates the table that holds the stream
+	 * checkpoints, if it does not exist yet.
+	 */
+	public synchronized void createStreamCheckpointsTable() {
+		try (Statement statement = currentConnection.createStatement()) {
+			statement.execute(CREATE_STREAM_CHECKPOINTS_TABLE_SQL);
+		} catch (SQLException e) {
+			throw new EmissionException(e);
+		}
+	}
+
+	/*
+	 * fetchStreamCheckpoint returns the sequence number up to which all
+	 * writers applied the changes in the shard, or null if there is none.
+	 * Writers commit independently, so the lowest checkpoint is the only one
+	 * that all of them reached. Writers without a checkpoint get one with
+	 * sequence number 0 first, such that the shard is not resumed until every
+	 * writer has committed its part of a batch. The checkpoints of all
+	 * writers are then reset to the lowest one, such that the result stays
+	 * correct when the number of writers changes.
+	 */
+	public synchronized String fetchStreamCheckpoint(String tableName, String shardId) {
+		try {
+			currentConnection.setAutoCommit(false);
+
+			String sequenceNumber = null;
+
+			initStreamCheckpointsStatement.setString(1, tableName);
+			initStreamCheckpointsStatement.setString(2, shardId);
+			initStreamCheckpointsStatement.setInt(3, streamCheckpointWriters);
+			initStreamCheckpointsStatement.executeUpdate();
+
+			fetchStreamCheckpointStatement.setString(1, tableName);
+			fetchStreamCheckpointStatement.setString(2, shardId);
+
+			ResultSet checkpointResults = fetchStreamCheckpointStatement.executeQuery();
+
+			if (checkpointResults.next()) {
+				sequenceNumber = checkpointResults.getString("sequence_number");
+			}
+
+			clearStreamCheckpointStatement.setString(1, tableName);
+			clearStreamCheckpointStatement.setString(2, shardId);
+			clearStreamCheckpointStatement.executeUpdate();
+
+			for (int writer = 0; writer < streamCheckpointWriters; writer++) {
+				storeStreamCheckpoint(new StreamCheckpoint(tableName, shardId, sequenceNumber, writer));
+			}
+
+			currentConnection.commit();
+
+			/* at least one writer has not applied anything yet */
+			if (new BigInteger(sequenceNumber).signum() == 0) {
+				return null;
+			}
+
+			return sequenceNumber;
+		} catch (SQLException e) {
+			try {
+				currentConnection.rollback();
+			} catch (SQLException rollbackException) {
+				e.addSuppressed(rollbackException);
+			}
+
+			throw new EmissionException(e);
+		} finally {
+			try {
+				currentConnection.setAutoCommit(true);
+			} catch (SQLException e) {
+				throw new EmissionException(e);
+			}
+		}
+	}
+
+	/*
+	 * clearStreamCheckpoint removes the checkpoints of a shard that has been
+	 * fully applied.
+	 */
+	public synchronized void clearStreamCheckpoint(String tableName, String shardId) {
+		try {
+			clearStreamCheckpointStatement.setString(1, tableName);
+			clearStreamCheckpointStatement.setString(2, shardId);
+			clearStreamCheckpointStatement.executeUpdate();
 		} catch (SQLException e) {
 			throw new EmissionException(e);
 		}
 	}
 
+	void storeStreamCheckpoint(StreamCheckpoint checkpoint) throws SQLException {
+		saveStreamCheckpointStatement.setString(1, checkpoint.tableName);
+		saveStreamCheckpointStatement.setString(2, checkpoint.shardId);
+		saveStreamCheckpointStatement.setInt(3, checkpoint.writer);
+		saveStreamCheckpointStatement.setString(4, checkpoint.sequenceNumber);
+		saveStreamCheckpointStatement.executeUpdate();
+	}
+
+	void createScanProgressTable() throws SQLException {
+		try (Statement statement = currentConnection.createStatement()) {
+			statement.execute(CREATE_SCAN_PROGRESS_TABLE_SQL);
+		}
+	}
+
+	/*
+	 * createColumn adds the column to the table. The ALTER TABLE waits for
+	 * transactions on the table to finish and new writes queue behind it, so
+	 * if a lock timeout is set it gives up after the timeout, such that writes
+	 * can continue, and tries again.
+	 */
+	public synchronized void createColumn(TableColumn column) {
+		for (int attempt = 1; ; attempt++) {
+			try (Statement statement = currentConnection.createStatement()) {
+				statement.execute(column.toAlterTableAddColumn());
+				return;
+			} catch (SQLException e) {
+				if (lockTimeoutMillis <= 0 ||
+						!LOCK_NOT_AVAILABLE.equals(e.getSQLState()) ||
+						attempt >= MAX_SCHEMA_CHANGE_ATTEMPTS) {
+					throw new EmissionException(e);
+				}
+
+				LOG.info(String.format("Could not lock table to add column %s within %d ms, retrying (attempt %d)",
+						column.name, lockTimeoutMillis, attempt));
+			}
+
+			try {
+				Thread.sleep(SCHEMA_CHANGE_RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new EmissionException(e);
+			}
+		}
+	}
+
 	public synchronized void upsert(TableRow tableRow) {
 		try {
-			Statement statement = currentConnection.createStatement();
-			statement.execute(tableRow.toUpsert());
+			upsertRows(tableRow.tableSchema, Collections.singletonList(tableRow));
 		} catch (SQLException e) {
 			throw new EmissionException(e);
 		}
@@ -202,18 +952,391 @@ public class JDBCTableEmitter implements TableEmitter {
 
 	public synchronized void delete(PrimaryKeyValue primaryKeyValue) {
 		try {
-			Statement statement = currentConnection.createStatement();
-			statement.execute(primaryKeyValue.toDelete());
+			deleteKeys(primaryKeyValue.tableSchema, Collections.singletonList(primaryKeyValue));
 		} catch (SQLException e) {
 			throw new EmissionException(e);
 		}
 	}
-	
+
+	/*
+	 * applyModifications combines consecutive upserts and consecutive deletes
+	 * on the same table into multi-row commands of at most maxBatchRows rows,
+	 * such that executing the commands in order has the same effect as
+	 * applying the modifications one by one. An upsert of a key that is
+	 * already in the current command starts a new command, since a single
+	 * INSERT .. ON CONFLICT cannot update a row twice.
+	 *
+	 * When merging or using transactions, the modifications are applied in
+	 * transactions of at most maxTransactionSize modifications, such that all
+	 * modifications have been committed when applyModifications returns. A
+	 * stream checkpoint is stored in the last of those transactions.
+	 */
+	public synchronized void applyModifications(List<TableModification> modifications, StreamCheckpoint checkpoint) {
+		if (!mergeModifications && !transactionalModifications && checkpoint == null) {
+			try {
+				batchModifications(modifications);
+			} catch (SQLException e) {
+				throw new EmissionException(e);
+			}
+
+			return;
+		}
+
+		int start = 0;
+
+		/* a checkpoint is stored even if there are no modifications */
+		do {
+			int end = Math.min(modifications.size(), start + maxTransactionSize);
+			List<TableModification> transactionModifications = modifications.subList(start, end);
+			StreamCheckpoint transactionCheckpoint = end == modifications.size() ? checkpoint : null;
+
+			if (mergeModifications) {
+				mergeModifications(transactionModifications, transactionCheckpoint);
+			} else {
+				batchModificationsInTransaction(transactionModifications, transactionCheckpoint);
+			}
+
+			start = end;
+		} while (start < modifications.size());
+	}
+
+	/*
+	 * batchModificationsInTransaction applies modifications using multi-row
+	 * commands in a single transaction, along with the stream checkpoint if
+	 * it is not null.
+	 */
+	void batchModificationsInTransaction(List<TableModification> modifications, StreamCheckpoint checkpoint) {
+		try {
+			currentConnection.setAutoCommit(false);
+
+			batchModifications(modifications);
+
+			if (checkpoint != null) {
+				storeStreamCheckpoint(checkpoint);
+			}
+
+			currentConnection.commit();
+		} catch (Exception e) {
+			try {
+				currentConnection.rollback();
+			} catch (SQLException rollbackException) {
+				e.addSuppressed(rollbackException);
+			}
+
+			throw new EmissionException(e);
+		} finally {
+			try {
+				currentConnection.setAutoCommit(true);
+			} catch (SQLException e) {
+				throw new EmissionException(e);
+			}
+		}
+	}
+
+	void batchModifications(List<TableModification> modifications) throws SQLException {
+		List<TableRow> upsertRows = new ArrayList<>();
+		List<PrimaryKeyValue> deleteKeys = new ArrayList<>();
+		Set<String> upsertKeys = new HashSet<>();
+		TableSchema batchSchema = null;
+
+		for (TableModification modification : modifications) {
+			if (modification instanceof Upsert) {
+				TableRow tableRow = ((Upsert) modification).getNewRow();
+				String keyValues = tableRow.getPrimaryKeyValue().toValues();
+
+				if (!deleteKeys.isEmpty() ||
+						tableRow.tableSchema != batchSchema ||
+						upsertRows.size() >= maxBatchRows ||
+						upsertKeys.contains(keyValues)) {
+					flushModifications(batchSchema, upsertRows, deleteKeys);
+					upsertKeys.clear();
+				}
+
+				upsertRows.add(tableRow);
+				upsertKeys.add(keyValues);
+				batchSchema = tableRow.tableSchema;
+			} else if (modification instanceof Delete) {
+				PrimaryKeyValue primaryKeyValue = ((Delete) modification).getKeyValue();
+
+				if (!upsertRows.isEmpty() ||
+						primaryKeyValue.tableSchema != batchSchema ||
+						deleteKeys.size() >= maxBatchRows) {
+					flushModifications(batchSchema, upsertRows, deleteKeys);
+					upsertKeys.clear();
+				}
+
+				deleteKeys.add(primaryKeyValue);
+				batchSchema = primaryKeyValue.tableSchema;
+			}
+		}
+
+		flushModifications(batchSchema, upsertRows, deleteKeys);
+	}
+
+	/*
+	 * mergeModifications copies the rows of upserts and the keys of deletes
+	 * into staging tables using COPY, and merges them into the table using
+	 * INSERT .. SELECT .. ON CONFLICT and DELETE .. USING, all in a single
+	 * transaction. Only the last modification of each key is kept, such that
+	 * the staging tables contain every key at most once. The stream checkpoint
+	 * is stored in the same transaction if it is not null.
+	 */
+	void mergeModifications(List<TableModification> modifications, StreamCheckpoint checkpoint) {
+		Map<TableSchema,List<TableModification>> modificationsPerTable = new LinkedHashMap<>();
+
+		for (TableModification modification : modifications) {
+			TableSchema tableSchema = modification.getPrimaryKeyValue().tableSchema;
+			List<TableModification> tableModifications = modificationsPerTable.get(tableSchema);
+
+			if (tableModifications == null) {
+				tableModifications = new ArrayList<>();
+				modificationsPerTable.put(tableSchema, tableModifications);
+			}
+
+			tableModifications.add(modification);
+		}
+
+		List<PreparedModifications> stagedTables = new ArrayList<>();
+
+		try (Statement statement = currentConnection.createStatement()) {
+			currentConnection.setAutoCommit(false);
+
+			for (Map.Entry<TableSchema,List<TableModification>> tableModifications : modificationsPerTable.entrySet()) {
+				TableSchema tableSchema = tableModifications.getKey();
+				PreparedModifications prepared = prepareModifications(tableSchema);
+
+				if (!prepared.stagingTablesCreated) {
+					statement.execute(TableSchema.toStagingTableDDL(prepared.stagingRowsTable, prepared.upsertColumns));
+					statement.execute(TableSchema.toStagingTableDDL(prepared.stagingKeysTable, prepared.primaryKeyColumns));
+					stagedTables.add(prepared);
+				}
+
+				TableRowBatch upsertBatch = new TableRowBatch(tableSchema, prepared.upsertColumns);
+				TableRowBatch deleteBatch = new TableRowBatch(tableSchema, prepared.primaryKeyColumns);
+
+				for (TableModification modification : DynamoDBTableReplicator.coalesceModifications(tableModifications.getValue())) {
+					if (modification instanceof Upsert) {
+						upsertBatch.addRow(((Upsert) modification).getNewRow());
+					} else if (modification instanceof Delete) {
+						deleteBatch.addRow(((Delete) modification).getKeyValue().toRow());
+					}
+				}
+
+				if (upsertBatch.size() > 0) {
+					copyRows(upsertBatch.copyFromStdin(prepared.stagingRowsTable, copyFormat(upsertBatch)), upsertBatch);
+					statement.executeUpdate(tableSchema.toMergeUpsert(prepared.stagingRowsTable, prepared.upsertColumns));
+				}
+
+				if (deleteBatch.size() > 0) {
+					copyRows(deleteBatch.copyFromStdin(prepared.stagingKeysTable, copyFormat(deleteBatch)), deleteBatch);
+					statement.executeUpdate(tableSchema.toMergeDelete(prepared.stagingKeysTable));
+				}
+			}
+
+			if (checkpoint != null) {
+				storeStreamCheckpoint(checkpoint);
+			}
+
+			currentConnection.commit();
+
+			/* staging tables created in a rolled back transaction do not exist */
+			for (PreparedModifications prepared : stagedTables) {
+				prepared.stagingTablesCreated = true;
+			}
+		} catch (Exception e) {
+			try {
+				currentConnection.rollback();
+			} catch (SQLException rollbackException) {
+				e.addSuppressed(rollbackException);
+			}
+
+			throw new EmissionException(e);
+		} finally {
+			try {
+				currentConnection.setAutoCommit(true);
+			} catch (SQLException e) {
+				throw new EmissionException(e);
+			}
+		}
+	}
+
+	void flushModifications(TableSchema batchSchema, List<TableRow> upsertRows, List<PrimaryKeyValue> deleteKeys) throws SQLException {
+		if (!upsertRows.isEmpty()) {
+			upsertRows(batchSchema, upsertRows);
+			upsertRows.clear();
+		}
+
+		if (!deleteKeys.isEmpty()) {
+			deleteKeys(batchSchema, deleteKeys);
+			deleteKeys.clear();
+		}
+	}
+
+	/*
+	 * upsertRows upserts rows using the prepared upsert statement of the table,
+	 * passing the values of each column as an array.
+	 */
+	void upsertRows(TableSchema tableSchema, List<TableRow> tableRows) throws SQLException {
+		PreparedModifications prepared = prepareModifications(tableSchema);
+		int parameterIndex = 1;
+
+		for (TableColumn column : prepared.upsertColumns) {
+			prepared.upsertStatement.setObject(parameterIndex++, toArrayLiteral(tableRows, column), Types.OTHER);
+		}
+
+		prepared.upsertStatement.executeUpdate();
+	}
+
+	/*
+	 * deleteKeys deletes rows using the prepared delete statement of the table,
+	 * which deletes a single key and is executed as a batch, such that Citus
+	 * can route each delete to a single shard.
+	 */
+	void deleteKeys(TableSchema tableSchema, List<PrimaryKeyValue> primaryKeyValues) throws SQLException {
+		PreparedModifications prepared = prepareModifications(tableSchema);
+
+		for (PrimaryKeyValue primaryKeyValue : primaryKeyValues) {
+			int parameterIndex = 1;
+
+			for (String columnName : tableSchema.getPrimaryKeyColumnNames()) {
+				prepared.deleteStatement.setObject(parameterIndex++, primaryKeyValue.getValue(columnName).toString(), Types.OTHER);
+			}
+
+			prepared.deleteStatement.addBatch();
+		}
+
+		prepared.deleteStatement.executeBatch();
+	}
+
+	static String toArrayLiteral(List<TableRow> tableRows, TableColumn column) {
+		StringBuilder sb = new StringBuilder();
+		boolean skipSeparator = true;
+
+		sb.append('{');
+
+		for (TableRow tableRow : tableRows) {
+			if (!skipSeparator) {
+				sb.append(',');
+			}
+
+			TableColumnValue value = tableRow.getValue(column.name);
+
+			if (value != null) {
+				sb.append(value.toArrayElement());
+			} else {
+				sb.append("NULL");
+			}
+
+			skipSeparator = false;
+		}
+
+		sb.append('}');
+
+		return sb.toString();
+	}
+
+	/*
+	 * prepareModifications returns the prepared upsert and delete statements
+	 * for the current version of the schema, and prepares new statements when
+	 * the schema has changed since they were last prepared.
+	 */
+	PreparedModifications prepareModifications(TableSchema tableSchema) throws SQLException {
+		/* get the version before the columns, such that we never keep stale columns */
+		int schemaVersion = tableSchema.getVersion();
+		PreparedModifications prepared = preparedModifications.get(tableSchema);
+
+		if (prepared != null && prepared.schemaVersion == schemaVersion) {
+			return prepared;
+		}
+
+		if (prepared != null) {
+			prepared.close();
+		}
+
+		prepared = new PreparedModifications(currentConnection, tableSchema, schemaVersion, nextStagingTableId++);
+		preparedModifications.put(tableSchema, prepared);
+
+		return prepared;
+	}
+
 	public synchronized void close() {
 		try {
+			for (PreparedModifications prepared : preparedModifications.values()) {
+				prepared.close();
+			}
+
+			preparedModifications.clear();
 			currentConnection.close();
 		} catch (SQLException e) {
 			throw new EmissionException(e);
 		}
 	}
+
+	/*
+	 * PreparedModifications holds the server-side prepared upsert and delete
+	 * statements for a version of a table schema.
+	 */
+	static class PreparedModifications {
+
+		final Connection connection;
+		final int schemaVersion;
+		final List<TableColumn> upsertColumns;
+		final List<TableColumn> primaryKeyColumns;
+		final PreparedStatement upsertStatement;
+		final PreparedStatement deleteStatement;
+
+		/* temporary tables into which changes are copied before merging them */
+		final String stagingRowsTable;
+		final String stagingKeysTable;
+		boolean stagingTablesCreated;
+
+		PreparedModifications(Connection connection, TableSchema tableSchema, int schemaVersion, int stagingTableId) throws SQLException {
+			this.connection = connection;
+			this.schemaVersion = schemaVersion;
+			this.upsertColumns = tableSchema.getColumnList();
+			this.primaryKeyColumns = tableSchema.getPrimaryKeyColumns();
+			this.upsertStatement = connection.prepareStatement(tableSchema.toArrayUpsert(upsertColumns));
+			this.deleteStatement = connection.prepareStatement(tableSchema.toDelete());
+			this.stagingRowsTable = "podyn_stage_" + stagingTableId + "_rows";
+			this.stagingKeysTable = "podyn_stage_" + stagingTableId + "_keys";
+			this.stagingTablesCreated = false;
+
+			/* prepare on the server on first use, since the statements are reused */
+			upsertStatement.unwrap(PGStatement.class).setPrepareThreshold(1);
+			deleteStatement.unwrap(PGStatement.class).setPrepareThreshold(1);
+		}
+
+		void close() throws SQLException {
+			upsertStatement.close();
+			deleteStatement.close();
+
+			if (stagingTablesCreated) {
+				try (Statement statement = connection.createStatement()) {
+					statement.execute("DROP TABLE IF EXISTS " + stagingRowsTable + ", " + stagingKeysTable);
+				}
+			}
+		}
+	}
+
+	/*
+	 * CopyInBuffer passes encoded COPY data to the COPY that is in progress.
+	 */
+	static class CopyInBuffer extends CopyBuffer {
+
+		CopyIn copyIn;
+
+		void startCopy(CopyIn copyIn) {
+			this.copyIn = copyIn;
+			reset();
+		}
+
+		@Override
+		protected void writeToDestination(byte[] bytes, int offset, int length) throws IOException {
+			try {
+				copyIn.writeToCopy(bytes, offset, length);
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+		}
+	}
 }
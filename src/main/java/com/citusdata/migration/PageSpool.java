@@ -0,0 +1,302 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/*
+ * PageSpool is a queue of scan pages that is kept in memory-mapped segment
+ * files on local disk, such that the scan can continue at full speed while
+ * the destination is slow to accept writes. Pages are appended to the last
+ * segment and taken from the first, and a segment file is deleted once all
+ * of its pages have been taken. The number of segments is bounded, such that
+ * put blocks when the spool is full.
+ *
+ * The spool only lives for the duration of a data load. Pages in the spool
+ * have not been copied yet and scan progress is stored only after copying,
+ * so nothing is lost when the spool is discarded on failure.
+ */
+public class PageSpool implements Closeable {
+
+	/* largest size of a single segment file */
+	static final long MAX_SEGMENT_SIZE_BYTES = 64L * 1024 * 1024;
+
+	/* smallest size of a single segment file */
+	static final long MIN_SEGMENT_SIZE_BYTES = 1024L * 1024;
+
+	/* size of the length header of each page record */
+	static final int RECORD_HEADER_SIZE = 4;
+
+	final Path spoolDirectory;
+	final long segmentSize;
+	final int maxSegments;
+
+	final ReentrantLock lock;
+	final Condition notEmpty;
+	final Condition notFull;
+
+	/* segments in the order in which they were written */
+	final Deque<Segment> segments;
+
+	long nextSegmentNumber;
+	int numPages;
+
+	/*
+	 * PageSpool creates a new spool in a subdirectory of the given directory
+	 * that uses at most about maxSizeBytes of disk space.
+	 */
+	public PageSpool(Path parentDirectory, String name, long maxSizeBytes) throws IOException {
+		this.spoolDirectory = Files.createTempDirectory(parentDirectory, "podyn-" + name + "-");
+		this.segmentSize = Math.max(MIN_SEGMENT_SIZE_BYTES, Math.min(MAX_SEGMENT_SIZE_BYTES, maxSizeBytes / 4));
+		this.maxSegments = (int) Math.max(2, maxSizeBytes / segmentSize);
+		this.lock = new ReentrantLock();
+		this.notEmpty = lock.newCondition();
+		this.notFull = lock.newCondition();
+		this.segments = new ArrayDeque<>();
+		this.nextSegmentNumber = 0;
+		this.numPages = 0;
+	}
+
+	/*
+	 * put appends a page to the spool, waiting for a segment to be consumed if
+	 * the spool is full.
+	 */
+	public void put(ScanPage page) throws InterruptedException, IOException {
+		byte[] record = toBytes(page);
+
+		lock.lockInterruptibly();
+
+		try {
+			while (true) {
+				Segment segment = segments.peekLast();
+
+				if (segment != null && !segment.sealed && segment.hasRoom(record.length)) {
+					segment.write(record);
+					break;
+				}
+
+				if (segment != null) {
+					/* no more pages will be written to this segment */
+					segment.sealed = true;
+				}
+
+				if (segments.size() >= maxSegments) {
+					notFull.await();
+					continue;
+				}
+
+				segments.addLast(createSegment(Math.max(segmentSize, RECORD_HEADER_SIZE + record.length)));
+			}
+
+			numPages++;
+
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * take removes the oldest page from the spool, waiting for one to be put
+	 * if the spool is empty.
+	 */
+	public ScanPage take() throws InterruptedException, IOException {
+		byte[] record;
+
+		lock.lockInterruptibly();
+
+		try {
+			while (true) {
+				Segment segment = segments.peekFirst();
+
+				if (segment != null && segment.hasUnread()) {
+					record = segment.read();
+					break;
+				}
+
+				if (segment != null && segment.sealed) {
+					segments.removeFirst();
+					segment.delete();
+					notFull.signalAll();
+					continue;
+				}
+
+				notEmpty.await();
+			}
+
+			numPages--;
+		} finally {
+			lock.unlock();
+		}
+
+		return fromBytes(record);
+	}
+
+	/*
+	 * size returns the number of pages in the spool.
+	 */
+	public int size() {
+		lock.lock();
+
+		try {
+			return numPages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	Segment createSegment(long size) throws IOException {
+		Path segmentFile = spoolDirectory.resolve(String.format("segment-%08d", nextSegmentNumber++));
+		return new Segment(segmentFile, size);
+	}
+
+	/*
+	 * close deletes all segments and the spool directory.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+
+		try {
+			while (!segments.isEmpty()) {
+				segments.removeFirst().delete();
+			}
+
+			numPages = 0;
+		} finally {
+			lock.unlock();
+		}
+
+		Files.deleteIfExists(spoolDirectory);
+	}
+
+	static byte[] toBytes(ScanPage page) throws IOException {
+		ObjectNode pageNode = DynamoJson.NODES.objectNode();
+		pageNode.put("segment", page.segment);
+
+		ArrayNode itemsNode = pageNode.putArray("items");
+
+		for (Map<String,AttributeValue> item : page.items) {
+			itemsNode.add(DynamoJson.toJsonNode(item));
+		}
+
+		if (page.lastEvaluatedKey != null) {
+			pageNode.set("lastEvaluatedKey", DynamoJson.toJsonNode(page.lastEvaluatedKey));
+		}
+
+		if (page.readTimeMillis != 0) {
+			pageNode.put("readTime", page.readTimeMillis);
+		}
+
+		return DynamoJson.MAPPER.writeValueAsBytes(pageNode);
+	}
+
+	static ScanPage fromBytes(byte[] record) throws IOException {
+		JsonNode pageNode = DynamoJson.MAPPER.readTree(record);
+		int segment = pageNode.get("segment").asInt();
+
+		if (segment == ScanPage.END.segment) {
+			return ScanPage.END;
+		}
+
+		List<Map<String,AttributeValue>> items = new ArrayList<>();
+
+		for (JsonNode itemNode : pageNode.get("items")) {
+			items.add(DynamoJson.itemFromJsonNode(itemNode));
+		}
+
+		Map<String,AttributeValue> lastEvaluatedKey = null;
+
+		if (pageNode.has("lastEvaluatedKey")) {
+			lastEvaluatedKey = DynamoJson.itemFromJsonNode(pageNode.get("lastEvaluatedKey"));
+		}
+
+		long readTimeMillis = pageNode.has("readTime") ? pageNode.get("readTime").asLong() : 0;
+
+		return new ScanPage(segment, items, lastEvaluatedKey, readTimeMillis);
+	}
+
+	/*
+	 * Segment is a single memory-mapped file that holds page records, which
+	 * each consist of a 4-byte length followed by the page in JSON.
+	 */
+	static class Segment {
+
+		final Path segmentFile;
+		final FileChannel channel;
+		MappedByteBuffer buffer;
+
+		int writePosition;
+		int readPosition;
+		boolean sealed;
+
+		Segment(Path segmentFile, long size) throws IOException {
+			this.segmentFile = segmentFile;
+			this.channel = FileChannel.open(segmentFile,
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			this.writePosition = 0;
+			this.readPosition = 0;
+			this.sealed = false;
+		}
+
+		boolean hasRoom(int recordLength) {
+			return writePosition + RECORD_HEADER_SIZE + recordLength <= buffer.capacity();
+		}
+
+		boolean hasUnread() {
+			return readPosition < writePosition;
+		}
+
+		void write(byte[] record) {
+			buffer.putInt(writePosition, record.length);
+			buffer.position(writePosition + RECORD_HEADER_SIZE);
+			buffer.put(record);
+			writePosition += RECORD_HEADER_SIZE + record.length;
+		}
+
+		byte[] read() {
+			byte[] record = new byte[buffer.getInt(readPosition)];
+			buffer.position(readPosition + RECORD_HEADER_SIZE);
+			buffer.get(record);
+			readPosition += RECORD_HEADER_SIZE + record.length;
+			return record;
+		}
+
+		/*
+		 * delete removes the segment file. The file is truncated first to free
+		 * the disk space right away, since the mapping itself is only released
+		 * when the buffer is garbage collected.
+		 */
+		void delete() throws IOException {
+			buffer = null;
+
+			try {
+				channel.truncate(0);
+			} finally {
+				channel.close();
+				Files.deleteIfExists(segmentFile);
+			}
+		}
+	}
+
+}
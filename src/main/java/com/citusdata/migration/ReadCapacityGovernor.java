@@ -0,0 +1,121 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/*
+ * ReadCapacityGovernor divides a budget of read capacity units per second among
+ * the scans that are currently running. Each table gets a share of the budget
+ * that is proportional to its weight, which is split evenly among the segments
+ * of the table that are still being scanned. Shares are recomputed whenever a
+ * scan starts or finishes, such that capacity that is freed up by a finished
+ * scan goes to the scans that are still running.
+ */
+public class ReadCapacityGovernor {
+
+	public static final double DEFAULT_WEIGHT = 1.0;
+
+	final double capacityUnitsPerSecond;
+	final Map<String,Double> tableWeights;
+	final Map<String,List<ScanShare>> activeScans;
+
+	public ReadCapacityGovernor(double capacityUnitsPerSecond) {
+		this(capacityUnitsPerSecond, new HashMap<String,Double>());
+	}
+
+	public ReadCapacityGovernor(double capacityUnitsPerSecond, Map<String,Double> tableWeights) {
+		this.capacityUnitsPerSecond = capacityUnitsPerSecond;
+		this.tableWeights = tableWeights;
+		this.activeScans = new LinkedHashMap<>();
+	}
+
+	/*
+	 * startScan registers a scan of a segment of the given table and returns its
+	 * share of the budget, which should be finished when the scan is done.
+	 */
+	public synchronized ScanShare startScan(String tableName) {
+		ScanShare share = new ScanShare(tableName);
+		List<ScanShare> tableScans = activeScans.get(tableName);
+
+		if (tableScans == null) {
+			tableScans = new ArrayList<>();
+			activeScans.put(tableName, tableScans);
+		}
+
+		tableScans.add(share);
+		rebalance();
+
+		return share;
+	}
+
+	synchronized void finishScan(ScanShare share) {
+		List<ScanShare> tableScans = activeScans.get(share.tableName);
+
+		if (tableScans == null || !tableScans.remove(share)) {
+			return;
+		}
+
+		if (tableScans.isEmpty()) {
+			activeScans.remove(share.tableName);
+		}
+
+		rebalance();
+	}
+
+	double getWeight(String tableName) {
+		Double weight = tableWeights.get(tableName);
+		return weight != null ? weight : DEFAULT_WEIGHT;
+	}
+
+	void rebalance() {
+		double totalWeight = 0;
+
+		for (String tableName : activeScans.keySet()) {
+			totalWeight += getWeight(tableName);
+		}
+
+		for (Map.Entry<String,List<ScanShare>> tableScans : activeScans.entrySet()) {
+			double tableRate = capacityUnitsPerSecond * getWeight(tableScans.getKey()) / totalWeight;
+			double scanRate = tableRate / tableScans.getValue().size();
+
+			for (ScanShare share : tableScans.getValue()) {
+				share.rateLimiter.setRate(scanRate);
+			}
+		}
+	}
+
+	public class ScanShare {
+
+		final String tableName;
+		final RateLimiter rateLimiter;
+
+		ScanShare(String tableName) {
+			this.tableName = tableName;
+			this.rateLimiter = RateLimiter.create(capacityUnitsPerSecond);
+		}
+
+		/*
+		 * acquire waits until the scan may consume the given number of units.
+		 */
+		public void acquire(int capacityUnits) {
+			rateLimiter.acquire(capacityUnits);
+		}
+
+		public double getRate() {
+			return rateLimiter.getRate();
+		}
+
+		public void finish() {
+			finishScan(this);
+		}
+	}
+
+}
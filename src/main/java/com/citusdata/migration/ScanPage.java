@@ -0,0 +1,42 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/*
+ * ScanPage holds the items returned by a single scan request on a segment of
+ * a DynamoDB table, along with the key from which to continue the scan and the
+ * time at which the page was read (0 for pages that were not scanned).
+ */
+public class ScanPage {
+
+	/* marks the end of the scan in a queue of pages */
+	public static final ScanPage END = new ScanPage(-1, Collections.<Map<String,AttributeValue>>emptyList(), null);
+
+	public final int segment;
+	public final List<Map<String,AttributeValue>> items;
+	public final Map<String,AttributeValue> lastEvaluatedKey;
+	public final long readTimeMillis;
+
+	public ScanPage(int segment, List<Map<String,AttributeValue>> items, Map<String,AttributeValue> lastEvaluatedKey) {
+		this(segment, items, lastEvaluatedKey, 0);
+	}
+
+	public ScanPage(int segment, List<Map<String,AttributeValue>> items, Map<String,AttributeValue> lastEvaluatedKey, long readTimeMillis) {
+		this.segment = segment;
+		this.items = items;
+		this.lastEvaluatedKey = lastEvaluatedKey;
+		this.readTimeMillis = readTimeMillis;
+	}
+
+	public int size() {
+		return items.size();
+	}
+
+}
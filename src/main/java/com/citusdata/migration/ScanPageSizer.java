@@ -0,0 +1,88 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+/*
+ * ScanPageSizer tunes the Limit of scan requests such that responses come close
+ * to a target size. DynamoDB charges one read capacity unit per 4KB read with
+ * strongly consistent reads, and half a unit with eventually consistent reads,
+ * so the capacity consumed by a page gives an estimate of the average item size.
+ */
+public class ScanPageSizer {
+
+	public static final int INITIAL_LIMIT = 100;
+	public static final int MAX_LIMIT = 10000;
+	public static final int CAPACITY_UNIT_BYTES = 4096;
+	public static final int MAX_PAGE_BYTES = 1024 * 1024;
+
+	final boolean consistentRead;
+
+	long targetPageBytes;
+	double averageItemBytes;
+	int limit;
+
+	public ScanPageSizer(long targetPageBytes, boolean consistentRead) {
+		this.consistentRead = consistentRead;
+		this.averageItemBytes = 0;
+		this.limit = INITIAL_LIMIT;
+		setTargetPageBytes(targetPageBytes);
+	}
+
+	/*
+	 * forScanRate creates a page sizer that targets pages which cost about one
+	 * second worth of the given read rate.
+	 */
+	public static ScanPageSizer forScanRate(double capacityUnitsPerSecond, boolean consistentRead) {
+		ScanPageSizer pageSizer = new ScanPageSizer(MAX_PAGE_BYTES, consistentRead);
+		pageSizer.setScanRate(capacityUnitsPerSecond);
+		return pageSizer;
+	}
+
+	public void setTargetPageBytes(long targetPageBytes) {
+		this.targetPageBytes = Math.max(CAPACITY_UNIT_BYTES, Math.min(targetPageBytes, MAX_PAGE_BYTES));
+	}
+
+	/*
+	 * setScanRate changes the target to pages that cost about one second worth
+	 * of the given read rate, e.g. when the share of the scan changed.
+	 */
+	public void setScanRate(double capacityUnitsPerSecond) {
+		double bytesPerUnit = consistentRead ? CAPACITY_UNIT_BYTES : 2 * CAPACITY_UNIT_BYTES;
+
+		setTargetPageBytes((long) (capacityUnitsPerSecond * bytesPerUnit));
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public long getTargetPageBytes() {
+		return targetPageBytes;
+	}
+
+	/*
+	 * update adjusts the limit based on the number of items in the last page and
+	 * the capacity it consumed.
+	 */
+	public void update(int itemCount, double consumedCapacity) {
+		if (itemCount == 0 || consumedCapacity <= 0) {
+			return;
+		}
+
+		double bytesPerUnit = consistentRead ? CAPACITY_UNIT_BYTES : 2 * CAPACITY_UNIT_BYTES;
+		double pageItemBytes = consumedCapacity * bytesPerUnit / itemCount;
+
+		if (averageItemBytes == 0) {
+			averageItemBytes = pageItemBytes;
+		} else {
+			/* smooth out differences between pages */
+			averageItemBytes = (averageItemBytes + pageItemBytes) / 2;
+		}
+
+		long newLimit = (long) (targetPageBytes / averageItemBytes);
+
+		limit = (int) Math.max(1, Math.min(newLimit, MAX_LIMIT));
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.citusdata.migration.datamodel.TableColumn;
+import com.citusdata.migration.datamodel.TableSchema;
+
+/*
+ * SchemaSampler derives the columns of a table from a sample of its items
+ * before the table is created, such that the data load rarely needs to add
+ * columns. The sample is taken from the start of several parallel scan
+ * segments, which each cover a random part of the key space.
+ */
+public class SchemaSampler {
+
+	private static final Log LOG = LogFactory.getLog(SchemaSampler.class);
+
+	final DynamoDBTableReplicator replicator;
+	final int sampleSize;
+	final int sampleSegments;
+
+	public SchemaSampler(DynamoDBTableReplicator replicator, int sampleSize, int sampleSegments) {
+		this.replicator = replicator;
+		this.sampleSize = sampleSize;
+		this.sampleSegments = sampleSegments;
+	}
+
+	/*
+	 * addSampledColumns adds columns for the attributes found in the sample to
+	 * the schema, using the given governor to limit the read capacity used by
+	 * the sample, and returns the number of sampled items.
+	 */
+	public long addSampledColumns(final TableSchema tableSchema, final ReadCapacityGovernor governor) throws InterruptedException, ExecutionException {
+		int numSegments = Math.max(1, Math.min(sampleSegments, sampleSize));
+		List<Future<Long>> futures = new ArrayList<>();
+
+		for (int segment = 0; segment < numSegments; segment++) {
+			final int sampleSegment = segment;
+			final int segmentSampleSize = sampleSize / numSegments + (segment < sampleSize % numSegments ? 1 : 0);
+
+			futures.add(replicator.executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return sampleSegment(tableSchema, sampleSegment, numSegments, segmentSampleSize, governor);
+				}
+			}));
+		}
+
+		long numItemsSampled = 0;
+
+		try {
+			for (Future<Long> future : futures) {
+				numItemsSampled += future.get();
+			}
+		} finally {
+			for (Future<Long> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		LOG.info(String.format("Sampled %d items from table %s, found %d columns",
+				numItemsSampled, replicator.dynamoTableName, tableSchema.getColumnList().size()));
+
+		return numItemsSampled;
+	}
+
+	long sampleSegment(TableSchema tableSchema, int segment, int totalSegments, int segmentSampleSize, ReadCapacityGovernor governor) throws InterruptedException {
+		Map<String,AttributeValue> lastEvaluatedScanKey = null;
+		long numItemsSampled = 0;
+
+		ReadCapacityGovernor.ScanShare scanShare = governor.startScan(replicator.dynamoTableName);
+
+		try {
+			ScanPageSizer pageSizer = ScanPageSizer.forScanRate(scanShare.getRate(), replicator.consistentScan);
+
+			do {
+				int limit = (int) Math.min(pageSizer.getLimit(), segmentSampleSize - numItemsSampled);
+
+				ScanResult scanResult = replicator.scanWithRetries(segment, totalSegments, lastEvaluatedScanKey, limit);
+				lastEvaluatedScanKey = scanResult.getLastEvaluatedKey();
+
+				pageSizer.setScanRate(scanShare.getRate());
+				pageSizer.update(scanResult.getCount(), scanResult.getConsumedCapacity().getCapacityUnits());
+
+				for (Map<String,AttributeValue> item : scanResult.getItems()) {
+					for (TableColumn column : replicator.addColumnsForItem(tableSchema, item)) {
+						LOG.debug(String.format("Found column in sample of table %s: %s", tableSchema.tableName, column));
+					}
+				}
+
+				numItemsSampled += scanResult.getCount();
+
+				int permitsToConsume = Math.max(1, (int) scanResult.getConsumedCapacity().getCapacityUnits().doubleValue());
+				scanShare.acquire(permitsToConsume);
+			} while (lastEvaluatedScanKey != null && numItemsSampled < segmentSampleSize);
+		} finally {
+			scanShare.finish();
+		}
+
+		return numItemsSampled;
+	}
+
+}
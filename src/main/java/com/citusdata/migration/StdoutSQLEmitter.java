@@ -7,12 +7,21 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
 
+import com.citusdata.migration.datamodel.Delete;
 import com.citusdata.migration.datamodel.PrimaryKeyValue;
+import com.citusdata.migration.datamodel.ScanProgress;
+import com.citusdata.migration.datamodel.StreamCheckpoint;
 import com.citusdata.migration.datamodel.TableColumn;
 import com.citusdata.migration.datamodel.TableEmitter;
+import com.citusdata.migration.datamodel.TableIndex;
+import com.citusdata.migration.datamodel.TableModification;
 import com.citusdata.migration.datamodel.TableRow;
+import com.citusdata.migration.datamodel.TableRowBatch;
 import com.citusdata.migration.datamodel.TableSchema;
+import com.citusdata.migration.datamodel.Upsert;
 
 /**
  * @author marco
@@ -38,6 +47,11 @@ public class StdoutSQLEmitter implements TableEmitter {
 		System.out.println(column.toAlterTableAddColumn()+";");
 	}
 
+	@Override
+	public void createIndex(TableIndex tableIndex) {
+		System.out.println(tableIndex.toDDL(true)+";");
+	}
+
 	@Override
 	public long copyFromReader(TableSchema tableSchema, Reader reader) {
 		long numLines = 0;
@@ -60,6 +74,51 @@ public class StdoutSQLEmitter implements TableEmitter {
 		return numLines;
 	}
 
+	@Override
+	public synchronized long copyFromBatch(TableRowBatch tableRowBatch) {
+		System.out.println(tableRowBatch.copyFromStdin()+";");
+		System.out.print(tableRowBatch.toCopyInput());
+		System.out.println("\\.\n");
+
+		return tableRowBatch.size();
+	}
+
+	@Override
+	public void finishDataLoad(TableSchema tableSchema) {
+		if (tableSchema.isUnlogged()) {
+			System.out.println(tableSchema.setLoggedDDL()+";");
+			System.out.println("VACUUM (FREEZE, ANALYZE) "+tableSchema.getQualifiedTableName()+";");
+			tableSchema.setUnlogged(false);
+		}
+	}
+
+	@Override
+	public boolean hasRows(TableSchema tableSchema) {
+		return false;
+	}
+
+	@Override
+	public List<ScanProgress> fetchScanProgress(String tableName) {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void saveScanProgress(ScanProgress scanProgress) {
+	}
+
+	@Override
+	public void clearScanProgress(String tableName) {
+	}
+
+	@Override
+	public String fetchStreamCheckpoint(String tableName, String shardId) {
+		return null;
+	}
+
+	@Override
+	public void clearStreamCheckpoint(String tableName, String shardId) {
+	}
+
 	@Override
 	public void upsert(TableRow tableRow) {
 		System.out.println(tableRow.toUpsert()+";");
@@ -70,6 +129,17 @@ public class StdoutSQLEmitter implements TableEmitter {
 		System.out.println(primaryKeyValue.toDelete()+";");
 	}
 
+	@Override
+	public void applyModifications(List<TableModification> modifications, StreamCheckpoint checkpoint) {
+		for (TableModification modification : modifications) {
+			if (modification instanceof Upsert) {
+				upsert(((Upsert) modification).getNewRow());
+			} else if (modification instanceof Delete) {
+				delete(((Delete) modification).getKeyValue());
+			}
+		}
+	}
+
 	@Override
 	public void close() {
 		
@@ -0,0 +1,218 @@
+/**
+ * 
+ */
+package com.citusdata.migration.datamodel;
+
+import java.io.IOException;
+
+/*
+ * CopyBuffer encodes COPY data into a fixed-size byte buffer, which is passed
+ * on to the destination whenever it fills up. This allows a batch of rows to be
+ * streamed into COPY without first building the whole input in memory, and the
+ * buffer can be reused across batches.
+ */
+public abstract class CopyBuffer {
+
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	final byte[] buffer;
+	int position;
+
+	public CopyBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public CopyBuffer(int capacity) {
+		this.buffer = new byte[capacity];
+		this.position = 0;
+	}
+
+	/*
+	 * writeToDestination is called with the contents of the buffer when it is
+	 * full or when the buffer is flushed.
+	 */
+	protected abstract void writeToDestination(byte[] bytes, int offset, int length) throws IOException;
+
+	public void flush() throws IOException {
+		if (position > 0) {
+			writeToDestination(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	public void reset() {
+		position = 0;
+	}
+
+	public void writeByte(int b) throws IOException {
+		if (position == buffer.length) {
+			flush();
+		}
+
+		buffer[position++] = (byte) b;
+	}
+
+	public void writeShort(int value) throws IOException {
+		writeByte(value >>> 8);
+		writeByte(value);
+	}
+
+	public void writeInt(int value) throws IOException {
+		writeByte(value >>> 24);
+		writeByte(value >>> 16);
+		writeByte(value >>> 8);
+		writeByte(value);
+	}
+
+	public void writeBytes(byte[] bytes) throws IOException {
+		int offset = 0;
+
+		while (offset < bytes.length) {
+			if (position == buffer.length) {
+				flush();
+			}
+
+			int length = Math.min(bytes.length - offset, buffer.length - position);
+			System.arraycopy(bytes, offset, buffer, position, length);
+			position += length;
+			offset += length;
+		}
+	}
+
+	public void writeAscii(String string) throws IOException {
+		for (int i = 0; i < string.length(); i++) {
+			writeByte(string.charAt(i));
+		}
+	}
+
+	/*
+	 * writeCopyText writes a string as a field in COPY text format, which means
+	 * it is encoded in UTF-8 and backslashes and control characters are escaped.
+	 */
+	public void writeCopyText(String string) throws IOException {
+		for (int i = 0; i < string.length(); i++) {
+			char ch = string.charAt(i);
+
+			switch(ch) {
+			case '\b':
+				writeByte('\\');
+				writeByte('b');
+				break;
+			case '\f':
+				writeByte('\\');
+				writeByte('f');
+				break;
+			case '\n':
+				writeByte('\\');
+				writeByte('n');
+				break;
+			case '\r':
+				writeByte('\\');
+				writeByte('r');
+				break;
+			case '\t':
+				writeByte('\\');
+				writeByte('t');
+				break;
+			case '\\':
+				writeByte('\\');
+				writeByte('\\');
+				break;
+			default:
+				if (Character.isHighSurrogate(ch) && i + 1 < string.length() &&
+						Character.isLowSurrogate(string.charAt(i + 1))) {
+					writeCodePoint(Character.toCodePoint(ch, string.charAt(++i)));
+				} else {
+					writeCodePoint(ch);
+				}
+				break;
+			}
+		}
+	}
+
+	/*
+	 * writeUtf8 writes a string in UTF-8 without escaping, as used in the
+	 * COPY binary format.
+	 */
+	public void writeUtf8(String string) throws IOException {
+		for (int i = 0; i < string.length(); i++) {
+			char ch = string.charAt(i);
+
+			if (Character.isHighSurrogate(ch) && i + 1 < string.length() &&
+					Character.isLowSurrogate(string.charAt(i + 1))) {
+				writeCodePoint(Character.toCodePoint(ch, string.charAt(++i)));
+			} else {
+				writeCodePoint(ch);
+			}
+		}
+	}
+
+	/*
+	 * utf8Length returns the number of bytes writeUtf8 writes for a string.
+	 */
+	public static int utf8Length(String string) {
+		int length = 0;
+
+		for (int i = 0; i < string.length(); i++) {
+			char ch = string.charAt(i);
+
+			if (ch < 0x80) {
+				length += 1;
+			} else if (ch < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(ch) && i + 1 < string.length() &&
+					Character.isLowSurrogate(string.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(ch)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+
+		return length;
+	}
+
+	void writeCodePoint(int codePoint) throws IOException {
+		if (codePoint < 0x80) {
+			writeByte(codePoint);
+		} else if (codePoint < 0x800) {
+			writeByte(0xC0 | (codePoint >> 6));
+			writeByte(0x80 | (codePoint & 0x3F));
+		} else if (codePoint < 0x10000) {
+			if (Character.isSurrogate((char) codePoint)) {
+				/* unpaired surrogate, replace in the same way as String.getBytes */
+				writeByte('?');
+				return;
+			}
+
+			writeByte(0xE0 | (codePoint >> 12));
+			writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+			writeByte(0x80 | (codePoint & 0x3F));
+		} else {
+			writeByte(0xF0 | (codePoint >> 18));
+			writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+			writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+			writeByte(0x80 | (codePoint & 0x3F));
+		}
+	}
+
+	private final static byte[] hexBytes = "0123456789ABCDEF".getBytes();
+
+	/*
+	 * writeCopyHex writes a byte array as a bytea field in COPY text format.
+	 */
+	public void writeCopyHex(byte[] bytes) throws IOException {
+		writeByte('\\');
+		writeByte('\\');
+		writeByte('x');
+
+		for (int i = 0; i < bytes.length; i++) {
+			int v = bytes[i] & 0xFF;
+			writeByte(hexBytes[v >>> 4]);
+			writeByte(hexBytes[v & 0x0F]);
+		}
+	}
+
+}
@@ -0,0 +1,7 @@
+package com.citusdata.migration.datamodel;
+
+public enum CopyFormat {
+
+	text,
+	binary
+}
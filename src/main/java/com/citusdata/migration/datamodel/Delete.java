@@ -21,4 +21,9 @@ public class Delete implements TableModification {
 		return keyValue;
 	}
 
+	@Override
+	public PrimaryKeyValue getPrimaryKeyValue() {
+		return keyValue;
+	}
+
 }
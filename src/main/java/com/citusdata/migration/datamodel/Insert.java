@@ -15,4 +15,9 @@ public class Insert implements TableModification {
 		this.newValue = newValue;
 	}
 
+	@Override
+	public PrimaryKeyValue getPrimaryKeyValue() {
+		return newValue.getPrimaryKeyValue();
+	}
+
 }
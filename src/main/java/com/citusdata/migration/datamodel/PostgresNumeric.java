@@ -0,0 +1,128 @@
+/**
+ * 
+ */
+package com.citusdata.migration.datamodel;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/*
+ * PostgresNumeric represents a number in the way PostgreSQL stores numeric
+ * values: an array of base-10000 digits without leading or trailing zeroes,
+ * the weight of the first digit, a sign and a display scale.
+ */
+public class PostgresNumeric {
+
+	public static final int NUMERIC_POS = 0x0000;
+	public static final int NUMERIC_NEG = 0x4000;
+
+	public final short[] digits;
+	public final int weight;
+	public final int sign;
+	public final int displayScale;
+
+	PostgresNumeric(short[] digits, int weight, int sign, int displayScale) {
+		this.digits = digits;
+		this.weight = weight;
+		this.sign = sign;
+		this.displayScale = displayScale;
+	}
+
+	public static PostgresNumeric fromString(String string) {
+		return fromBigDecimal(new BigDecimal(string));
+	}
+
+	public static PostgresNumeric fromBigDecimal(BigDecimal value) {
+		int sign = value.signum() < 0 ? NUMERIC_NEG : NUMERIC_POS;
+		int scale = value.scale();
+		String decimalDigits = value.unscaledValue().abs().toString();
+
+		if (scale < 0) {
+			StringBuilder sb = new StringBuilder(decimalDigits);
+
+			for (int i = 0; i < -scale; i++) {
+				sb.append('0');
+			}
+
+			decimalDigits = sb.toString();
+			scale = 0;
+		}
+
+		/* split the decimal digits at the decimal point */
+		String integerDigits;
+		String fractionDigits;
+
+		if (scale >= decimalDigits.length()) {
+			StringBuilder sb = new StringBuilder();
+
+			for (int i = decimalDigits.length(); i < scale; i++) {
+				sb.append('0');
+			}
+
+			integerDigits = "";
+			fractionDigits = sb.append(decimalDigits).toString();
+		} else {
+			integerDigits = decimalDigits.substring(0, decimalDigits.length() - scale);
+			fractionDigits = decimalDigits.substring(decimalDigits.length() - scale);
+		}
+
+		/* group the digits by 4 on either side of the decimal point */
+		int integerGroups = (integerDigits.length() + 3) / 4;
+		int fractionGroups = (fractionDigits.length() + 3) / 4;
+		int integerPadding = integerGroups * 4 - integerDigits.length();
+		short[] groups = new short[integerGroups + fractionGroups];
+
+		for (int i = 0; i < integerDigits.length(); i++) {
+			int position = integerPadding + i;
+			groups[position / 4] = (short) (groups[position / 4] * 10 + (integerDigits.charAt(i) - '0'));
+		}
+
+		for (int i = 0; i < fractionGroups * 4; i++) {
+			int digit = i < fractionDigits.length() ? fractionDigits.charAt(i) - '0' : 0;
+			int group = integerGroups + i / 4;
+			groups[group] = (short) (groups[group] * 10 + digit);
+		}
+
+		/* strip leading and trailing zeroes */
+		int weight = integerGroups - 1;
+		int start = 0;
+		int end = groups.length;
+
+		while (start < end && groups[start] == 0) {
+			start++;
+			weight--;
+		}
+
+		while (end > start && groups[end - 1] == 0) {
+			end--;
+		}
+
+		if (start == end) {
+			return new PostgresNumeric(new short[0], 0, NUMERIC_POS, scale);
+		}
+
+		short[] digits = new short[end - start];
+		System.arraycopy(groups, start, digits, 0, digits.length);
+
+		return new PostgresNumeric(digits, weight, sign, scale);
+	}
+
+	public int binaryLength() {
+		return 8 + 2 * digits.length;
+	}
+
+	/*
+	 * writeBinary writes the number in the format used by numeric_send.
+	 */
+	public void writeBinary(CopyBuffer copyBuffer) throws IOException {
+		copyBuffer.writeShort(digits.length);
+		copyBuffer.writeShort(weight);
+		copyBuffer.writeShort(sign);
+		copyBuffer.writeShort(displayScale);
+
+		for (short digit : digits) {
+			copyBuffer.writeShort(digit);
+		}
+	}
+
+}
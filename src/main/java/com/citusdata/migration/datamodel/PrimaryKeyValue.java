@@ -39,6 +39,49 @@ public class PrimaryKeyValue {
 		return values.get(key);
 	}
 
+	/*
+	 * toValues returns the values of the primary key columns as a row
+	 * constructor, in the order of the primary key.
+	 */
+	public String toValues() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("(");
+
+		boolean skipSeparator = true;
+
+		for (String columnName : tableSchema.getPrimaryKeyColumnNames()) {
+			TableColumn column = tableSchema.getColumn(columnName);
+
+			if (!skipSeparator) {
+				sb.append(", ");
+			}
+
+			sb.append(getValue(columnName).toQuotedString());
+			sb.append("::");
+			sb.append(column.type);
+
+			skipSeparator = false;
+		}
+
+		sb.append(")");
+
+		return sb.toString();
+	}
+
+	/*
+	 * toRow returns a row that only contains the primary key values.
+	 */
+	public TableRow toRow() {
+		TableRow tableRow = tableSchema.createRow();
+
+		for (Map.Entry<String,TableColumnValue> value : values.entrySet()) {
+			tableRow.setValue(value.getKey(), value.getValue());
+		}
+
+		return tableRow;
+	}
+
 	public String toDelete() {
 		StringBuilder sb = new StringBuilder();
 
@@ -0,0 +1,35 @@
+/**
+ * 
+ */
+package com.citusdata.migration.datamodel;
+
+/*
+ * ScanProgress records how far the scan of a segment of a DynamoDB table has
+ * been loaded into the destination. The last evaluated key is stored in
+ * DynamoDB JSON format, and is null when the segment is completed.
+ */
+public class ScanProgress {
+
+	public final String tableName;
+	public final int segment;
+	public final int totalSegments;
+	public final String lastEvaluatedKey;
+	public final boolean completed;
+
+	public ScanProgress(String tableName, int segment, int totalSegments, String lastEvaluatedKey, boolean completed) {
+		this.tableName = tableName;
+		this.segment = segment;
+		this.totalSegments = totalSegments;
+		this.lastEvaluatedKey = lastEvaluatedKey;
+		this.completed = completed;
+	}
+
+	public String toString() {
+		if (completed) {
+			return String.format("segment %d/%d of %s completed", segment, totalSegments, tableName);
+		} else {
+			return String.format("segment %d/%d of %s at %s", segment, totalSegments, tableName, lastEvaluatedKey);
+		}
+	}
+
+}
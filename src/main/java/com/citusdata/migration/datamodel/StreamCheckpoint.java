@@ -0,0 +1,37 @@
+/**
+ * 
+ */
+package com.citusdata.migration.datamodel;
+
+/*
+ * StreamCheckpoint records up to which sequence number the changes in a shard
+ * of the stream of a DynamoDB table have been applied by a writer. Each
+ * connection that applies changes is a separate writer with its own
+ * checkpoint, since the writers commit independently.
+ */
+public class StreamCheckpoint {
+
+	public final String tableName;
+	public final String shardId;
+	public final String sequenceNumber;
+	public final int writer;
+
+	public StreamCheckpoint(String tableName, String shardId, String sequenceNumber, int writer) {
+		this.tableName = tableName;
+		this.shardId = shardId;
+		this.sequenceNumber = sequenceNumber;
+		this.writer = writer;
+	}
+
+	/*
+	 * forWriter returns the same checkpoint for the given writer.
+	 */
+	public StreamCheckpoint forWriter(int writer) {
+		return new StreamCheckpoint(tableName, shardId, sequenceNumber, writer);
+	}
+
+	public String toString() {
+		return String.format("shard %s of %s at %s (writer %d)", shardId, tableName, sequenceNumber, writer);
+	}
+
+}
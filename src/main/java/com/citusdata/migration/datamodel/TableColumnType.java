@@ -29,6 +29,29 @@ public enum TableColumnType {
 		
 		return TableColumnType.text;
 	}
+
+	/*
+	 * hasBinaryCopyEncoding returns whether values for a column of the given
+	 * PostgreSQL type can be written in COPY binary format. Types that are not
+	 * one of the types above are treated as text, which only has the same
+	 * binary representation as a few other string types.
+	 */
+	public static boolean hasBinaryCopyEncoding(String name) {
+		for (TableColumnType type : TableColumnType.values()) {
+			if (type.name.equals(name)) {
+				return true;
+			}
+		}
+
+		switch (name) {
+		case "character varying":
+		case "character":
+		case "json":
+			return true;
+		default:
+			return false;
+		}
+	}
 	
 	public String toString() {
 		return name;
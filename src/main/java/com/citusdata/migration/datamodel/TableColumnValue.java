@@ -3,6 +3,9 @@
  */
 package com.citusdata.migration.datamodel;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
 /**
  * @author marco
  *
@@ -52,6 +55,59 @@ public class TableColumnValue {
 		return sb.toString();
 	}
 
+	public void writeCopyValue(CopyBuffer copyBuffer) throws IOException {
+		if (type == TableColumnType.bytea) {
+			copyBuffer.writeCopyHex((byte[]) datum);
+		} else {
+			copyBuffer.writeCopyText(datum.toString());
+		}
+	}
+
+	/*
+	 * writeBinaryCopyValue writes the value as a field in COPY binary format,
+	 * using the binary representation of the type of the destination column.
+	 */
+	public void writeBinaryCopyValue(CopyBuffer copyBuffer, TableColumnType columnType) throws IOException {
+		switch(columnType) {
+		case bytea: {
+			byte[] bytes = datum instanceof byte[] ? (byte[]) datum : toString().getBytes(StandardCharsets.UTF_8);
+			copyBuffer.writeInt(bytes.length);
+			copyBuffer.writeBytes(bytes);
+			break;
+		}
+
+		case bool: {
+			copyBuffer.writeInt(1);
+			copyBuffer.writeByte(Boolean.parseBoolean(toString()) ? 1 : 0);
+			break;
+		}
+
+		case numeric: {
+			PostgresNumeric numeric = PostgresNumeric.fromString(toString());
+			copyBuffer.writeInt(numeric.binaryLength());
+			numeric.writeBinary(copyBuffer);
+			break;
+		}
+
+		case jsonb: {
+			/* jsonb is sent as a version number followed by the JSON text */
+			String string = toString();
+			copyBuffer.writeInt(1 + CopyBuffer.utf8Length(string));
+			copyBuffer.writeByte(1);
+			copyBuffer.writeUtf8(string);
+			break;
+		}
+
+		case text:
+		default: {
+			String string = toString();
+			copyBuffer.writeInt(CopyBuffer.utf8Length(string));
+			copyBuffer.writeUtf8(string);
+			break;
+		}
+		}
+	}
+
 	public String toQuotedString() {
 		if(type == TableColumnType.bytea) {
 			return "'" + toString() + "'";
@@ -111,6 +167,31 @@ public class TableColumnValue {
 		return escapedString;
 	}
 
+	/*
+	 * toArrayElement returns the value as a quoted element of an array literal,
+	 * e.g. {"a\\b","c\"d"}.
+	 */
+	public String toArrayElement() {
+		String string = toString();
+		StringBuilder sb = new StringBuilder(string.length() + 2);
+
+		sb.append('"');
+
+		for (int i = 0; i < string.length(); i++) {
+			char ch = string.charAt(i);
+
+			if (ch == '"' || ch == '\\') {
+				sb.append('\\');
+			}
+
+			sb.append(ch);
+		}
+
+		sb.append('"');
+
+		return sb.toString();
+	}
+
 	public String toString() {
 		switch(type) {
 		case bytea:
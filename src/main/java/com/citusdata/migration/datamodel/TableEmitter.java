@@ -1,6 +1,7 @@
 package com.citusdata.migration.datamodel;
 
 import java.io.Reader;
+import java.util.List;
 
 import com.citusdata.migration.EmissionException;
 
@@ -9,9 +10,19 @@ public interface TableEmitter {
 	TableSchema fetchSchema(String tableName) throws EmissionException;
 	void createTable(TableSchema tableSchema) throws EmissionException;
 	void createColumn(TableColumn column) throws EmissionException;
+	void createIndex(TableIndex tableIndex) throws EmissionException;
 	long copyFromReader(TableSchema tableSchema, Reader reader) throws EmissionException;
+	long copyFromBatch(TableRowBatch tableRowBatch) throws EmissionException;
+	void finishDataLoad(TableSchema tableSchema) throws EmissionException;
+	boolean hasRows(TableSchema tableSchema) throws EmissionException;
+	List<ScanProgress> fetchScanProgress(String tableName) throws EmissionException;
+	void saveScanProgress(ScanProgress scanProgress) throws EmissionException;
+	void clearScanProgress(String tableName) throws EmissionException;
+	String fetchStreamCheckpoint(String tableName, String shardId) throws EmissionException;
+	void clearStreamCheckpoint(String tableName, String shardId) throws EmissionException;
 	void upsert(TableRow tableRow) throws EmissionException;
 	void delete(PrimaryKeyValue primaryKeyValue) throws EmissionException;
+	void applyModifications(List<TableModification> modifications, StreamCheckpoint checkpoint) throws EmissionException;
 	void close() throws EmissionException;
 	
 }
@@ -16,9 +16,13 @@ public class TableIndex {
 	}
 	
 	public String toDDL() {
+		return toDDL(false);
+	}
+
+	public String toDDL(boolean ifNotExists) {
 		StringBuilder sb = new StringBuilder();
 
-		sb.append("CREATE INDEX ");
+		sb.append(ifNotExists ? "CREATE INDEX IF NOT EXISTS " : "CREATE INDEX ");
 		sb.append(TableSchema.quoteIdentifier(name));
 		sb.append(" ON ");
 		sb.append(TableSchema.quoteIdentifier(tableName));
@@ -8,4 +8,8 @@ package com.citusdata.migration.datamodel;
  *
  */
 public interface TableModification {
+
+	/* the primary key of the row that is modified */
+	PrimaryKeyValue getPrimaryKeyValue();
+
 }
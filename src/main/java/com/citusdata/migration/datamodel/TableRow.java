@@ -3,7 +3,10 @@
  */
 package com.citusdata.migration.datamodel;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -31,44 +34,7 @@ public class TableRow {
 	}
 	
 	public String toUpsert() {
-		StringBuilder sb = new StringBuilder();
-
-		sb.append(toInsert());
-		sb.append(" ON CONFLICT (");
-
-		boolean skipSeparator = true;
-
-		for (String columnName : tableSchema.getPrimaryKeyColumnNames()) {
-			if (!skipSeparator) {
-				sb.append(", ");
-			}
-
-			sb.append(TableSchema.quoteIdentifier(columnName));
-
-			skipSeparator = false;
-		}
-
-		sb.append(") DO UPDATE SET ");
-
-		skipSeparator = true;
-
-		for (String columnName : tableSchema.getColumnNames()) {
-			if (tableSchema.isInPrimaryKey(columnName)) {
-				continue;
-			}
-
-			if (!skipSeparator) {
-				sb.append(", ");
-			}
-
-			sb.append(TableSchema.quoteIdentifier(columnName));
-			sb.append(" = EXCLUDED.");
-			sb.append(TableSchema.quoteIdentifier(columnName));
-
-			skipSeparator = false;
-		}
-
-		return sb.toString();
+		return tableSchema.toUpsert(Collections.singletonList(this));
 	}
 
 	public String toInsert() {
@@ -97,13 +63,17 @@ public class TableRow {
 	}
 
 	public String toValues() {
+		return toValues(tableSchema.getColumns());
+	}
+
+	public String toValues(Iterable<TableColumn> valueColumns) {
 		StringBuilder sb = new StringBuilder();
 
 		sb.append("(");
 
 		boolean skipSeparator = true;
 
-		for (TableColumn column : tableSchema.getColumns()) {
+		for (TableColumn column : valueColumns) {
 			if (!skipSeparator) {
 				sb.append(", ");
 			}
@@ -127,16 +97,20 @@ public class TableRow {
 	}
 
 	public String toCopyRow() {
+		return toCopyRow(tableSchema.getColumns());
+	}
+
+	public String toCopyRow(Iterable<TableColumn> copyColumns) {
 		StringBuilder sb = new StringBuilder();
 
 		boolean skipSeparator = true;
 
-		for (String columnName : tableSchema.getColumnNames()) {
+		for (TableColumn column : copyColumns) {
 			if (!skipSeparator) {
 				sb.append('\t');
 			}
 
-			TableColumnValue value = values.get(columnName);
+			TableColumnValue value = values.get(column.name);
 
 			if (value != null) {
 				String escapedString = value.toCopyValue();
@@ -151,6 +125,56 @@ public class TableRow {
 		return sb.toString();
 	}
 
+	public void writeCopyRow(CopyBuffer copyBuffer, Iterable<TableColumn> copyColumns) throws IOException {
+		boolean skipSeparator = true;
+
+		for (TableColumn column : copyColumns) {
+			if (!skipSeparator) {
+				copyBuffer.writeByte('\t');
+			}
+
+			TableColumnValue value = values.get(column.name);
+
+			if (value != null) {
+				value.writeCopyValue(copyBuffer);
+			} else {
+				copyBuffer.writeByte('\\');
+				copyBuffer.writeByte('N');
+			}
+
+			skipSeparator = false;
+		}
+
+		copyBuffer.writeByte('\n');
+	}
+
+	public void writeBinaryCopyRow(CopyBuffer copyBuffer, List<TableColumn> copyColumns) throws IOException {
+		copyBuffer.writeShort(copyColumns.size());
+
+		for (TableColumn column : copyColumns) {
+			TableColumnValue value = values.get(column.name);
+
+			if (value != null) {
+				value.writeBinaryCopyValue(copyBuffer, column.type);
+			} else {
+				copyBuffer.writeInt(-1);
+			}
+		}
+	}
+
+	/*
+	 * getPrimaryKeyValue returns the primary key of the row.
+	 */
+	public PrimaryKeyValue getPrimaryKeyValue() {
+		PrimaryKeyValue primaryKeyValue = new PrimaryKeyValue(tableSchema);
+
+		for (String columnName : tableSchema.getPrimaryKeyColumnNames()) {
+			primaryKeyValue.setValue(columnName, values.get(columnName));
+		}
+
+		return primaryKeyValue;
+	}
+
 	public TableColumnValue getValue(String name) {
 		return values.get(name);
 	}
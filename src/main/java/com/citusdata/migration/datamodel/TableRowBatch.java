@@ -3,6 +3,7 @@
  */
 package com.citusdata.migration.datamodel;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
@@ -14,27 +15,102 @@ import java.util.List;
  */
 public class TableRowBatch {
 
+	static final byte[] BINARY_COPY_SIGNATURE = new byte[] {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+
+	public final TableSchema tableSchema;
+
+	/* columns that existed when the batch was created, new columns may be added concurrently */
+	final List<TableColumn> columns;
 	final List<TableRow> tableRows;
+
+	/* scan progress to store along with the batch, if any */
+	ScanProgress scanProgress;
 	
-	public TableRowBatch() {
+	public TableRowBatch(TableSchema tableSchema) {
+		this(tableSchema, tableSchema.getColumnList());
+	}
+
+	/*
+	 * TableRowBatch creates a batch with the given column snapshot, such that
+	 * the rows of a batch can be split into several batches with the same
+	 * columns.
+	 */
+	public TableRowBatch(TableSchema tableSchema, List<TableColumn> columns) {
+		this.tableSchema = tableSchema;
+		this.columns = columns;
 		this.tableRows = new ArrayList<>();
+		this.scanProgress = null;
 	}
 	
 	public void addRow(TableRow tableRow) {
 		this.tableRows.add(tableRow);
 	}
+
+	public ScanProgress getScanProgress() {
+		return scanProgress;
+	}
+
+	public void setScanProgress(ScanProgress scanProgress) {
+		this.scanProgress = scanProgress;
+	}
+
+	public List<TableColumn> getColumns() {
+		return columns;
+	}
+
+	public List<TableRow> getRows() {
+		return tableRows;
+	}
+
+	public String copyFromStdin() {
+		return tableSchema.copyFromStdin(columns);
+	}
+
+	public String copyFromStdin(CopyFormat copyFormat) {
+		return tableSchema.copyFromStdin(columns, copyFormat);
+	}
+
+	public String copyFromStdin(String qualifiedRelationName, CopyFormat copyFormat) {
+		return tableSchema.copyFromStdin(qualifiedRelationName, columns, copyFormat);
+	}
 	
 	public String toCopyInput() {
 		StringBuilder sb = new StringBuilder();
 		
 		for(TableRow tableRow : tableRows) {
-			sb.append(tableRow.toCopyRow());
+			sb.append(tableRow.toCopyRow(columns));
 			sb.append('\n');
 		}
 		
 		return sb.toString();
 	}
 	
+	/*
+	 * writeCopyInput streams the batch in COPY text format into the buffer,
+	 * without flushing the rows that remain in the buffer at the end.
+	 */
+	public void writeCopyInput(CopyBuffer copyBuffer) throws IOException {
+		for(TableRow tableRow : tableRows) {
+			tableRow.writeCopyRow(copyBuffer, columns);
+		}
+	}
+
+	/*
+	 * writeBinaryCopyInput streams the batch in COPY binary format into the
+	 * buffer, including the file header and trailer.
+	 */
+	public void writeBinaryCopyInput(CopyBuffer copyBuffer) throws IOException {
+		copyBuffer.writeBytes(BINARY_COPY_SIGNATURE);
+		copyBuffer.writeInt(0);
+		copyBuffer.writeInt(0);
+
+		for(TableRow tableRow : tableRows) {
+			tableRow.writeBinaryCopyRow(copyBuffer, columns);
+		}
+
+		copyBuffer.writeShort(-1);
+	}
+
 	public Reader asCopyReader() {
 		return new StringReader(toCopyInput());
 	}
@@ -15,14 +15,33 @@ import java.util.Map;
  */
 public class TableSchema {
 
+	/* hidden column holding the position of the change that last wrote a row */
+	public static final String SEQUENCE_COLUMN_NAME = "podyn_seq";
+
+	/* hidden column marking rows that were deleted, if sequence guarded */
+	public static final String DELETED_COLUMN_NAME = "podyn_deleted";
+
 	public String schemaName;
 	public String tableName;
 
-	private final Map<String, TableColumn> columns;
+	/* replaced on every change, such that readers always see a consistent set of columns */
+	private volatile Map<String, TableColumn> columns;
+
+	/* incremented whenever the columns or primary key change */
+	private volatile int version;
 	private TableColumn distributionColumn;
 	private List<String> primaryKey;
 	private List<TableIndex> tableIndexes;
 
+	/* whether the table is UNLOGGED until the initial data load is done */
+	private boolean unlogged;
+
+	/* whether secondary indexes are created after the initial data load */
+	private boolean deferIndexes;
+
+	/* whether all columns can be written in COPY binary format */
+	private boolean binaryCopySupported;
+
 	public TableSchema(String tableName) {
 		this(tableName, null);
 	}
@@ -31,8 +50,12 @@ public class TableSchema {
 		this.tableName = tableName;
 		this.schemaName = schemaName;
 		this.columns = new LinkedHashMap<>();
+		this.version = 0;
 		this.primaryKey = null;
 		this.tableIndexes = new ArrayList<>();
+		this.unlogged = false;
+		this.deferIndexes = false;
+		this.binaryCopySupported = true;
 	}
 
 	public TableRow createRow() {
@@ -43,17 +66,30 @@ public class TableSchema {
 		return columns.containsKey(columnName);
 	}
 
-	public TableColumn addColumn(String columnName, TableColumnType type) {
+	public synchronized TableColumn addColumn(String columnName, TableColumnType type) {
 		if (columnExists(columnName)) {
 			throw new ColumnExistError("column \"%s\" already exists", columnName);
 		}
 
 		TableColumn column = new TableColumn(this, columnName, type);
-		this.columns.put(columnName, column);
+
+		Map<String, TableColumn> newColumns = new LinkedHashMap<>(this.columns);
+		newColumns.put(columnName, column);
+		this.columns = newColumns;
+		this.version++;
 
 		return column;
 	}
 
+	/*
+	 * getVersion returns the version of the schema, which changes whenever a
+	 * column is added, such that commands generated for the schema can be
+	 * cached until the next change.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
 	public TableColumn getDistributionColumn() {
 		return this.distributionColumn;
 	}
@@ -78,6 +114,7 @@ public class TableSchema {
 		}
 
 		this.primaryKey = columnNames;
+		this.version++;
 	}
 
 	public void addIndex(String indexName, List<String> indexColumns) {
@@ -100,6 +137,15 @@ public class TableSchema {
 		return false;
 	}
 
+	/*
+	 * isSequenceGuarded returns whether the table has a sequence column, in
+	 * which case upserts only overwrite rows that were written by an older
+	 * change and deletes leave a tombstone with the sequence of the delete.
+	 */
+	public boolean isSequenceGuarded() {
+		return columnExists(SEQUENCE_COLUMN_NAME) && columnExists(DELETED_COLUMN_NAME);
+	}
+
 	public static String quoteIdentifier(String identifier) {
 		if (requiresQuotes(identifier)) {
 			return '"' + identifier.replace("\"", "\"\"") + '"';
@@ -108,6 +154,43 @@ public class TableSchema {
 		}
 	}
 
+	public boolean isUnlogged() {
+		return unlogged;
+	}
+
+	public void setUnlogged(boolean unlogged) {
+		this.unlogged = unlogged;
+	}
+
+	public List<TableIndex> getIndexes() {
+		return tableIndexes;
+	}
+
+	public boolean isDeferIndexes() {
+		return deferIndexes;
+	}
+
+	/*
+	 * setDeferIndexes leaves the secondary indexes out of the DDL, such that
+	 * they can be created once the data is loaded.
+	 */
+	public void setDeferIndexes(boolean deferIndexes) {
+		this.deferIndexes = deferIndexes;
+	}
+
+	public boolean isBinaryCopySupported() {
+		return binaryCopySupported;
+	}
+
+	/*
+	 * setBinaryCopySupported marks whether the table only has columns with a
+	 * type that can be written in COPY binary format, which is not the case for
+	 * existing tables with other column types.
+	 */
+	public void setBinaryCopySupported(boolean binaryCopySupported) {
+		this.binaryCopySupported = binaryCopySupported;
+	}
+
 	public String getQualifiedTableName() {
 		StringBuilder sb = new StringBuilder();
 
@@ -131,6 +214,56 @@ public class TableSchema {
 		return sb.toString();
 	}
 
+	public String copyFromStdin(Iterable<TableColumn> copyColumns) {
+		return copyFromStdin(getQualifiedTableName(), copyColumns);
+	}
+
+	/*
+	 * copyFromStdin returns a COPY command for a relation with the same
+	 * columns as this table, such as one of its shards.
+	 */
+	public String copyFromStdin(String qualifiedRelationName, Iterable<TableColumn> copyColumns) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("COPY ");
+		sb.append(qualifiedRelationName);
+		sb.append(" (");
+		sb.append(columnList(copyColumns));
+		sb.append(") FROM STDIN");
+
+		return sb.toString();
+	}
+
+	public static String columnList(Iterable<TableColumn> columns) {
+		StringBuilder sb = new StringBuilder();
+
+		boolean skipSeparator = true;
+
+		for (TableColumn column : columns) {
+			if (!skipSeparator) {
+				sb.append(", ");
+			}
+
+			sb.append(quoteIdentifier(column.name));
+
+			skipSeparator = false;
+		}
+
+		return sb.toString();
+	}
+
+	public String copyFromStdin(Iterable<TableColumn> copyColumns, CopyFormat copyFormat) {
+		return copyFromStdin(getQualifiedTableName(), copyColumns, copyFormat);
+	}
+
+	public String copyFromStdin(String qualifiedRelationName, Iterable<TableColumn> copyColumns, CopyFormat copyFormat) {
+		if (copyFormat == CopyFormat.binary) {
+			return copyFromStdin(qualifiedRelationName, copyColumns) + " WITH (FORMAT binary)";
+		} else {
+			return copyFromStdin(qualifiedRelationName, copyColumns);
+		}
+	}
+
 	public String toString() {
 		return toDDL();
 	}
@@ -151,8 +284,10 @@ public class TableSchema {
 
 		ddlCommands.add(createTableDDL());
 
-		for (TableIndex tableIndex : tableIndexes) {
-			ddlCommands.add(tableIndex.toDDL());
+		if (!deferIndexes) {
+			for (TableIndex tableIndex : tableIndexes) {
+				ddlCommands.add(tableIndex.toDDL());
+			}
 		}
 
 		if (distributionColumn != null) {
@@ -173,7 +308,7 @@ public class TableSchema {
 	public String createTableDDL() {
 		StringBuilder sb = new StringBuilder();
 
-		sb.append("CREATE TABLE ");
+		sb.append(unlogged ? "CREATE UNLOGGED TABLE " : "CREATE TABLE ");
 		sb.append(getQualifiedTableName());
 		sb.append(" (");
 
@@ -213,6 +348,14 @@ public class TableSchema {
 		return sb.toString();
 	}
 
+	/*
+	 * setLoggedDDL returns the command to make an UNLOGGED table crash-safe
+	 * after the initial data load.
+	 */
+	public String setLoggedDDL() {
+		return "ALTER TABLE " + getQualifiedTableName() + " SET LOGGED";
+	}
+
 	public String toDelete() {
 		return toDelete(null);
 	}
@@ -256,43 +399,231 @@ public class TableSchema {
 	}
 
 	public String toUpsert() {
+		return toInsert() + toOnConflictUpdate(getColumns());
+	}
+
+	/*
+	 * toUpsert returns a single INSERT .. ON CONFLICT command that upserts all
+	 * the given rows, which need to have distinct primary keys since a command
+	 * cannot update the same row twice.
+	 */
+	public String toUpsert(List<TableRow> tableRows) {
+		/* use the same columns for all rows, even if a column is added meanwhile */
+		List<TableColumn> upsertColumns = getColumnList();
+
 		StringBuilder sb = new StringBuilder();
 
-		sb.append(toInsert());
-		sb.append(" ON CONFLICT (");
+		sb.append("INSERT INTO ");
+		sb.append(getQualifiedTableName());
+		sb.append(" (");
+		sb.append(columnList(upsertColumns));
+		sb.append(") VALUES ");
 
 		boolean skipSeparator = true;
 
-		for (String columnName : getPrimaryKeyColumnNames()) {
+		for (TableRow tableRow : tableRows) {
 			if (!skipSeparator) {
 				sb.append(", ");
 			}
 
-			sb.append(TableSchema.quoteIdentifier(columnName));
+			sb.append(tableRow.toValues(upsertColumns));
 
 			skipSeparator = false;
 		}
 
-		sb.append(") DO UPDATE SET ");
+		sb.append(toOnConflictUpdate(upsertColumns));
 
-		skipSeparator = true;
+		return sb.toString();
+	}
 
-		for (String columnName : getColumnNames()) {
-			if (isInPrimaryKey(columnName)) {
-				continue;
+	/*
+	 * toArrayUpsert returns an INSERT .. ON CONFLICT command that upserts rows
+	 * given as one array parameter per column, in the order of upsertColumns,
+	 * such that the same prepared statement works for any number of rows.
+	 */
+	public String toArrayUpsert(List<TableColumn> upsertColumns) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("INSERT INTO ");
+		sb.append(getQualifiedTableName());
+		sb.append(" (");
+		sb.append(columnList(upsertColumns));
+		sb.append(") SELECT * FROM ");
+		sb.append(toUnnest(upsertColumns));
+		sb.append(toOnConflictUpdate(upsertColumns));
+
+		return sb.toString();
+	}
+
+	/*
+	 * toStagingTableDDL returns the command to create a temporary table with
+	 * the given columns, which is emptied at the end of every transaction.
+	 */
+	public static String toStagingTableDDL(String stagingTableName, List<TableColumn> stagingColumns) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("CREATE TEMPORARY TABLE IF NOT EXISTS ");
+		sb.append(stagingTableName);
+		sb.append(" (");
+
+		boolean skipSeparator = true;
+
+		for (TableColumn column : stagingColumns) {
+			if (!skipSeparator) {
+				sb.append(", ");
+			}
+
+			sb.append(quoteIdentifier(column.name));
+			sb.append(' ');
+			sb.append(column.type);
+
+			skipSeparator = false;
+		}
+
+		sb.append(") ON COMMIT DELETE ROWS");
+
+		return sb.toString();
+	}
+
+	/*
+	 * toMergeUpsert returns an INSERT .. SELECT .. ON CONFLICT command that
+	 * upserts the rows in the staging table.
+	 */
+	public String toMergeUpsert(String stagingTableName, List<TableColumn> upsertColumns) {
+		String columnList = columnList(upsertColumns);
+
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("INSERT INTO ");
+		sb.append(getQualifiedTableName());
+		sb.append(" (");
+		sb.append(columnList);
+		sb.append(") SELECT ");
+		sb.append(columnList);
+		sb.append(" FROM ");
+		sb.append(stagingTableName);
+		sb.append(toOnConflictUpdate(upsertColumns));
+
+		return sb.toString();
+	}
+
+	/*
+	 * toMergeDelete returns a DELETE .. USING command that deletes the rows
+	 * whose primary keys are in the staging table.
+	 */
+	public String toMergeDelete(String stagingTableName) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("DELETE FROM ");
+		sb.append(getQualifiedTableName());
+		sb.append(" d USING ");
+		sb.append(stagingTableName);
+		sb.append(" s WHERE ");
+
+		boolean skipSeparator = true;
+
+		for (String columnName : getPrimaryKeyColumnNames()) {
+			if (!skipSeparator) {
+				sb.append(" AND ");
+			}
+
+			sb.append("d.");
+			sb.append(quoteIdentifier(columnName));
+			sb.append(" = s.");
+			sb.append(quoteIdentifier(columnName));
+
+			skipSeparator = false;
+		}
+
+		return sb.toString();
+	}
+
+	/*
+	 * getPrimaryKeyColumns returns the primary key columns in key order.
+	 */
+	public List<TableColumn> getPrimaryKeyColumns() {
+		List<TableColumn> primaryKeyColumns = new ArrayList<>();
+
+		for (String columnName : getPrimaryKeyColumnNames()) {
+			primaryKeyColumns.add(getColumn(columnName));
+		}
+
+		return primaryKeyColumns;
+	}
+
+	static String toUnnest(List<TableColumn> arrayColumns) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("unnest(");
+
+		boolean skipSeparator = true;
+
+		for (TableColumn column : arrayColumns) {
+			if (!skipSeparator) {
+				sb.append(", ");
 			}
 
+			sb.append("?::");
+			sb.append(column.type);
+			sb.append("[]");
+
+			skipSeparator = false;
+		}
+
+		sb.append(")");
+
+		return sb.toString();
+	}
+
+	String toOnConflictUpdate(Iterable<TableColumn> updateColumns) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(" ON CONFLICT (");
+
+		boolean skipSeparator = true;
+
+		for (String columnName : getPrimaryKeyColumnNames()) {
 			if (!skipSeparator) {
 				sb.append(", ");
 			}
 
 			sb.append(TableSchema.quoteIdentifier(columnName));
+
+			skipSeparator = false;
+		}
+
+		sb.append(")");
+
+		skipSeparator = true;
+
+		for (TableColumn column : updateColumns) {
+			if (isInPrimaryKey(column.name)) {
+				continue;
+			}
+
+			sb.append(skipSeparator ? " DO UPDATE SET " : ", ");
+			sb.append(TableSchema.quoteIdentifier(column.name));
 			sb.append(" = EXCLUDED.");
-			sb.append(TableSchema.quoteIdentifier(columnName));
+			sb.append(TableSchema.quoteIdentifier(column.name));
 
 			skipSeparator = false;
 		}
 
+		if (skipSeparator) {
+			/* there is nothing to update if all columns are in the primary key */
+			sb.append(" DO NOTHING");
+		} else if (isSequenceGuarded()) {
+			/* skip changes that are older than the one that last wrote the row */
+			String sequenceColumn = quoteIdentifier(tableName) + "." + quoteIdentifier(SEQUENCE_COLUMN_NAME);
+
+			sb.append(" WHERE ");
+			sb.append(sequenceColumn);
+			sb.append(" IS NULL OR ");
+			sb.append(sequenceColumn);
+			sb.append(" < EXCLUDED.");
+			sb.append(quoteIdentifier(SEQUENCE_COLUMN_NAME));
+		}
+
 		return sb.toString();
 	}
 
@@ -359,6 +690,10 @@ public class TableSchema {
 		return this.columns.values();
 	}
 
+	public List<TableColumn> getColumnList() {
+		return new ArrayList<>(this.columns.values());
+	}
+
 	public TableColumn getColumn(String keyName) {
 		return columns.get(keyName);
 	}
@@ -19,4 +19,9 @@ public class Upsert implements TableModification {
 		return newValue;
 	}
 
+	@Override
+	public PrimaryKeyValue getPrimaryKeyValue() {
+		return newValue.getPrimaryKeyValue();
+	}
+
 }
@@ -0,0 +1,70 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CheckpointPolicyTest {
+
+	@Test
+	public void everyBatchCheckpointsAfterAnyRecords() {
+		CheckpointPolicy policy = CheckpointPolicy.EVERY_BATCH;
+
+		assertFalse(policy.isTimeBased());
+		assertTrue(policy.shouldCheckpoint(1, 0));
+		assertTrue(policy.shouldCheckpoint(1000, 0));
+	}
+
+	@Test
+	public void neverCheckpointsWithoutRecords() {
+		assertFalse(CheckpointPolicy.EVERY_BATCH.shouldCheckpoint(0, 0));
+		assertFalse(new CheckpointPolicy(1000, 0).shouldCheckpoint(0, 5000));
+		assertFalse(new CheckpointPolicy(0, 10).shouldCheckpoint(0, 5000));
+		assertFalse(new CheckpointPolicy(1000, 10).shouldCheckpoint(0, 5000));
+	}
+
+	@Test
+	public void intervalCheckpointsOnceIntervalHasPassed() {
+		CheckpointPolicy policy = new CheckpointPolicy(60000, 0);
+
+		assertTrue(policy.isTimeBased());
+		assertFalse(policy.shouldCheckpoint(1, 0));
+		assertFalse(policy.shouldCheckpoint(1000000, 59999));
+		assertTrue(policy.shouldCheckpoint(1, 60000));
+		assertTrue(policy.shouldCheckpoint(1, 120000));
+	}
+
+	@Test
+	public void recordsCheckpointsOnceEnoughRecordsWereApplied() {
+		CheckpointPolicy policy = new CheckpointPolicy(0, 100);
+
+		assertFalse(policy.isTimeBased());
+		assertFalse(policy.shouldCheckpoint(99, Long.MAX_VALUE));
+		assertTrue(policy.shouldCheckpoint(100, 0));
+		assertTrue(policy.shouldCheckpoint(250, 0));
+	}
+
+	@Test
+	public void intervalAndRecordsCheckpointOnWhicheverComesFirst() {
+		CheckpointPolicy policy = new CheckpointPolicy(60000, 100);
+
+		assertTrue(policy.isTimeBased());
+		assertFalse(policy.shouldCheckpoint(99, 59999));
+		assertTrue(policy.shouldCheckpoint(100, 0));
+		assertTrue(policy.shouldCheckpoint(1, 60000));
+	}
+
+	@Test
+	public void describesThresholds() {
+		assertEquals("every batch", CheckpointPolicy.EVERY_BATCH.toString());
+		assertEquals("every 60000 ms", new CheckpointPolicy(60000, 0).toString());
+		assertEquals("every 100 records", new CheckpointPolicy(0, 100).toString());
+		assertEquals("every 60000 ms or 100 records", new CheckpointPolicy(60000, 100).toString());
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.citusdata.migration.datamodel.PostgresNumeric;
+import com.citusdata.migration.datamodel.TableColumnType;
+import com.citusdata.migration.datamodel.TableColumnValue;
+
+/*
+ * The expected values are the results of hashtext and hash_numeric on
+ * PostgreSQL 14 on x86_64 with a UTF8 database.
+ */
+public class CitusHashTest {
+
+	@Test
+	public void hashTextMatchesPostgres() {
+		assertEquals(-1477818771, CitusHash.hashText(""));
+		assertEquals(1075015857, CitusHash.hashText("a"));
+		assertEquals(-785388649, CitusHash.hashText("abc"));
+		assertEquals(1021725223, CitusHash.hashText("hello world"));
+		assertEquals(1917921924, CitusHash.hashText("podyn"));
+		assertEquals(-1156658761, CitusHash.hashText("ünïcødé"));
+		assertEquals(1139425459, CitusHash.hashText("a somewhat longer string that spans more than twelve bytes"));
+	}
+
+	@Test
+	public void hashBytesMatchesPostgres() {
+		assertEquals(1090015717, CitusHash.hashBytes(new byte[] {1, 2, 3}));
+		assertEquals(CitusHash.hashText("hello world"), CitusHash.hashBytes("hello world".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void hashNumericMatchesPostgres() {
+		assertEquals(-1, CitusHash.hashNumeric(PostgresNumeric.fromString("0")));
+		assertEquals(1324868424, CitusHash.hashNumeric(PostgresNumeric.fromString("1")));
+		assertEquals(1324868425, CitusHash.hashNumeric(PostgresNumeric.fromString("10000")));
+		assertEquals(692967894, CitusHash.hashNumeric(PostgresNumeric.fromString("1.5")));
+		assertEquals(1568555724, CitusHash.hashNumeric(PostgresNumeric.fromString("123456789012345678901234567890")));
+		assertEquals(-1324868425, CitusHash.hashNumeric(PostgresNumeric.fromString("0.0001")));
+		assertEquals(1845032576, CitusHash.hashNumeric(PostgresNumeric.fromString("-42.42")));
+	}
+
+	@Test
+	public void hashNumericIgnoresSignAndTrailingZeroes() {
+		assertEquals(1324868424, CitusHash.hashNumeric(PostgresNumeric.fromString("-1")));
+		assertEquals(1186574835, CitusHash.hashNumeric(PostgresNumeric.fromString("100.000")));
+		assertEquals(CitusHash.hashNumeric(PostgresNumeric.fromString("100")),
+				CitusHash.hashNumeric(PostgresNumeric.fromString("100.000")));
+	}
+
+	@Test
+	public void hashValueUsesColumnType() {
+		assertEquals(1917921924, CitusHash.hashValue(new TableColumnValue(TableColumnType.text, "podyn"), TableColumnType.text));
+		assertEquals(692967894, CitusHash.hashValue(new TableColumnValue(TableColumnType.numeric, "1.5"), TableColumnType.numeric));
+		assertEquals(1090015717, CitusHash.hashValue(new TableColumnValue(TableColumnType.bytea, new byte[] {1, 2, 3}), TableColumnType.bytea));
+	}
+
+	@Test
+	public void supportsTextNumericAndBytea() {
+		assertTrue(CitusHash.isSupported(TableColumnType.text));
+		assertTrue(CitusHash.isSupported(TableColumnType.numeric));
+		assertTrue(CitusHash.isSupported(TableColumnType.bytea));
+		assertFalse(CitusHash.isSupported(TableColumnType.bool));
+		assertFalse(CitusHash.isSupported(TableColumnType.jsonb));
+	}
+
+	@Test(expected = EmissionException.class)
+	public void hashValueRejectsUnsupportedTypes() {
+		CitusHash.hashValue(new TableColumnValue(TableColumnType.bool, true), TableColumnType.bool);
+	}
+
+}
@@ -0,0 +1,129 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.citusdata.migration.datamodel.Delete;
+import com.citusdata.migration.datamodel.PrimaryKeyValue;
+import com.citusdata.migration.datamodel.TableColumnType;
+import com.citusdata.migration.datamodel.TableModification;
+import com.citusdata.migration.datamodel.TableRow;
+import com.citusdata.migration.datamodel.TableSchema;
+import com.citusdata.migration.datamodel.Upsert;
+
+public class DynamoDBTableReplicatorTest {
+
+	TableSchema tableSchema;
+
+	@Before
+	public void createSchema() {
+		tableSchema = new TableSchema("clicks");
+		tableSchema.addColumn("site", TableColumnType.text);
+		tableSchema.addColumn("ts", TableColumnType.numeric);
+		tableSchema.addColumn("value", TableColumnType.text);
+		tableSchema.setPrimaryKey(Arrays.asList("site", "ts"));
+	}
+
+	@Test
+	public void upsertThenDeleteKeepsDelete() {
+		TableModification upsert = upsert("a", "1", "x");
+		TableModification delete = delete("a", "1");
+
+		List<TableModification> coalesced = DynamoDBTableReplicator.coalesceModifications(Arrays.asList(upsert, delete));
+
+		assertEquals(1, coalesced.size());
+		assertSame(delete, coalesced.get(0));
+	}
+
+	@Test
+	public void deleteThenUpsertKeepsUpsert() {
+		TableModification delete = delete("a", "1");
+		TableModification upsert = upsert("a", "1", "x");
+
+		List<TableModification> coalesced = DynamoDBTableReplicator.coalesceModifications(Arrays.asList(delete, upsert));
+
+		assertEquals(1, coalesced.size());
+		assertSame(upsert, coalesced.get(0));
+	}
+
+	@Test
+	public void keepsLastOfSeveralUpserts() {
+		TableModification first = upsert("a", "1", "x");
+		TableModification second = upsert("a", "1", "y");
+		TableModification third = upsert("a", "1", "z");
+
+		List<TableModification> coalesced = DynamoDBTableReplicator.coalesceModifications(Arrays.asList(first, second, third));
+
+		assertEquals(Collections.singletonList(third), coalesced);
+	}
+
+	@Test
+	public void keepsModificationsOfDifferentKeys() {
+		TableModification upsertA = upsert("a", "1", "x");
+		TableModification upsertB = upsert("a", "2", "x");
+		TableModification deleteC = delete("b", "1");
+
+		List<TableModification> modifications = Arrays.asList(upsertA, upsertB, deleteC);
+
+		assertEquals(modifications, DynamoDBTableReplicator.coalesceModifications(modifications));
+	}
+
+	@Test
+	public void keysAreComparedOnAllColumns() {
+		/* the concatenated values are the same, but the keys are not */
+		TableModification upsertA = upsert("a1", "23", "x");
+		TableModification upsertB = upsert("a12", "3", "x");
+
+		List<TableModification> coalesced = DynamoDBTableReplicator.coalesceModifications(Arrays.asList(upsertA, upsertB));
+
+		assertEquals(Arrays.asList(upsertA, upsertB), coalesced);
+	}
+
+	@Test
+	public void interleavedKeysKeepLastModificationOfEach() {
+		TableModification upsertA = upsert("a", "1", "x");
+		TableModification upsertB = upsert("b", "1", "x");
+		TableModification deleteA = delete("a", "1");
+		TableModification deleteB = delete("b", "1");
+		TableModification upsertB2 = upsert("b", "1", "y");
+
+		List<TableModification> coalesced = DynamoDBTableReplicator.coalesceModifications(
+				Arrays.asList(upsertA, upsertB, deleteA, deleteB, upsertB2));
+
+		assertEquals(2, coalesced.size());
+		assertTrue(coalesced.contains(deleteA));
+		assertTrue(coalesced.contains(upsertB2));
+	}
+
+	@Test
+	public void emptyBatchStaysEmpty() {
+		assertTrue(DynamoDBTableReplicator.coalesceModifications(Collections.<TableModification>emptyList()).isEmpty());
+	}
+
+	Upsert upsert(String site, String ts, String value) {
+		TableRow row = tableSchema.createRow();
+		row.setValue("site", site);
+		row.setValue("ts", ts);
+		row.setValue("value", value);
+		return new Upsert(row);
+	}
+
+	Delete delete(String site, String ts) {
+		PrimaryKeyValue keyValue = new PrimaryKeyValue(tableSchema);
+		keyValue.setValue("site", site);
+		keyValue.setValue("ts", ts);
+		return new Delete(keyValue);
+	}
+
+}
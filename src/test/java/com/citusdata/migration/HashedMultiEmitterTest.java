@@ -0,0 +1,109 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.citusdata.migration.CitusShardMap.Shard;
+
+public class HashedMultiEmitterTest {
+
+	@Test
+	public void findShardCoversWholeHashRange() {
+		CitusShardMap shardMap = createShardMap(4, 2);
+		List<Shard> shards = shardMap.getShards();
+
+		assertSame(shards.get(0), shardMap.findShard(Integer.MIN_VALUE));
+		assertSame(shards.get(3), shardMap.findShard(Integer.MAX_VALUE));
+
+		for (int i = 0; i < shards.size(); i++) {
+			Shard shard = shards.get(i);
+
+			assertSame(shard, shardMap.findShard(shard.minValue));
+			assertSame(shard, shardMap.findShard(shard.maxValue));
+
+			if (i + 1 < shards.size()) {
+				assertSame(shards.get(i + 1), shardMap.findShard(shard.maxValue + 1));
+			}
+		}
+	}
+
+	@Test
+	public void findShardReturnsNullOutsideShards() {
+		CitusShardMap shardMap = new CitusShardMap("clicks");
+		shardMap.addPlacement(100, "clicks_100", -100, 100, "worker0", 5432);
+
+		assertSame(shardMap.getShards().get(0), shardMap.findShard(0));
+		assertNull(shardMap.findShard(101));
+		assertNull(shardMap.findShard(-101));
+		assertNull(new CitusShardMap("empty").findShard(0));
+	}
+
+	@Test
+	public void routingGivesEachEmitterShardsOfOneWorker() {
+		/* shards are placed on the workers round-robin, as Citus does */
+		CitusShardMap shardMap = createShardMap(8, 2);
+		HashedMultiEmitter.ShardRouting routing = new HashedMultiEmitter.ShardRouting(shardMap, 4);
+		List<Shard> shards = shardMap.getShards();
+
+		assertEquals(Integer.valueOf(0), routing.emitterIndexes.get(shards.get(0)));
+		assertEquals(Integer.valueOf(0), routing.emitterIndexes.get(shards.get(2)));
+		assertEquals(Integer.valueOf(1), routing.emitterIndexes.get(shards.get(4)));
+		assertEquals(Integer.valueOf(1), routing.emitterIndexes.get(shards.get(6)));
+		assertEquals(Integer.valueOf(2), routing.emitterIndexes.get(shards.get(1)));
+		assertEquals(Integer.valueOf(2), routing.emitterIndexes.get(shards.get(3)));
+		assertEquals(Integer.valueOf(3), routing.emitterIndexes.get(shards.get(5)));
+		assertEquals(Integer.valueOf(3), routing.emitterIndexes.get(shards.get(7)));
+	}
+
+	@Test
+	public void routingUsesAllEmittersWithFewerShards() {
+		CitusShardMap shardMap = createShardMap(2, 1);
+		HashedMultiEmitter.ShardRouting routing = new HashedMultiEmitter.ShardRouting(shardMap, 16);
+
+		assertEquals(Integer.valueOf(0), routing.emitterIndexes.get(shardMap.getShards().get(0)));
+		assertEquals(Integer.valueOf(8), routing.emitterIndexes.get(shardMap.getShards().get(1)));
+	}
+
+	@Test
+	public void routingAssignsEveryShard() {
+		CitusShardMap shardMap = createShardMap(32, 3);
+		HashedMultiEmitter.ShardRouting routing = new HashedMultiEmitter.ShardRouting(shardMap, 5);
+		int[] shardsPerEmitter = new int[5];
+
+		for (Shard shard : shardMap.getShards()) {
+			shardsPerEmitter[routing.emitterIndexes.get(shard)]++;
+		}
+
+		for (int emitterIndex = 0; emitterIndex < 5; emitterIndex++) {
+			assertEquals(32 / 5, shardsPerEmitter[emitterIndex], 1);
+		}
+	}
+
+	/*
+	 * createShardMap splits the hash range into shards of equal size, the way
+	 * Citus does for a hash-distributed table.
+	 */
+	static CitusShardMap createShardMap(int shardCount, int workerCount) {
+		CitusShardMap shardMap = new CitusShardMap("clicks");
+		long rangeSize = (1L << 32) / shardCount;
+
+		for (int i = 0; i < shardCount; i++) {
+			long shardId = 100 + i;
+			int minValue = (int) (Integer.MIN_VALUE + i * rangeSize);
+			int maxValue = i == shardCount - 1 ? Integer.MAX_VALUE : (int) (minValue + rangeSize - 1);
+
+			shardMap.addPlacement(shardId, "clicks_" + shardId, minValue, maxValue, "worker" + (i % workerCount), 5432);
+		}
+
+		return shardMap;
+	}
+
+}
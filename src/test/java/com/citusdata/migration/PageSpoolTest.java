@@ -0,0 +1,183 @@
+/**
+ * 
+ */
+package com.citusdata.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+public class PageSpoolTest {
+
+	/* large enough that a segment only holds a few pages */
+	static final int VALUE_SIZE = 200 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void takesPagesInOrderOfPut() throws Exception {
+		try (PageSpool spool = new PageSpool(folder.getRoot().toPath(), "order", 4L * 1024 * 1024)) {
+			for (int i = 0; i < 10; i++) {
+				spool.put(createPage(i));
+			}
+
+			assertEquals(10, spool.size());
+			assertTrue(spool.segments.size() > 1);
+
+			for (int i = 0; i < 10; i++) {
+				assertPage(i, spool.take());
+			}
+
+			assertEquals(0, spool.size());
+		}
+	}
+
+	@Test
+	public void keepsPageContents() throws Exception {
+		Map<String,AttributeValue> item = new HashMap<>();
+		item.put("s", new AttributeValue().withS("text"));
+		item.put("n", new AttributeValue().withN("12.5"));
+		item.put("b", new AttributeValue().withBOOL(true));
+
+		Map<String,AttributeValue> lastEvaluatedKey = new HashMap<>();
+		lastEvaluatedKey.put("s", new AttributeValue().withS("text"));
+
+		try (PageSpool spool = new PageSpool(folder.getRoot().toPath(), "contents", 4L * 1024 * 1024)) {
+			spool.put(new ScanPage(3, Collections.singletonList(item), lastEvaluatedKey, 1500000000000L));
+			spool.put(new ScanPage(3, Collections.<Map<String,AttributeValue>>emptyList(), null));
+			spool.put(ScanPage.END);
+
+			ScanPage page = spool.take();
+			assertEquals(3, page.segment);
+			assertEquals(Collections.singletonList(item), page.items);
+			assertEquals(lastEvaluatedKey, page.lastEvaluatedKey);
+			assertEquals(1500000000000L, page.readTimeMillis);
+
+			page = spool.take();
+			assertEquals(0, page.size());
+			assertNull(page.lastEvaluatedKey);
+			assertEquals(0, page.readTimeMillis);
+
+			assertSame(ScanPage.END, spool.take());
+		}
+	}
+
+	@Test
+	public void blocksWhenFullUntilPagesAreTaken() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try (PageSpool spool = new PageSpool(folder.getRoot().toPath(), "full", 2L * 1024 * 1024)) {
+			/* the spool holds far fewer pages than are put */
+			Future<?> producer = executor.submit(() -> {
+				for (int i = 0; i < 40; i++) {
+					spool.put(createPage(i));
+				}
+
+				return null;
+			});
+
+			for (int i = 0; i < 40; i++) {
+				assertPage(i, spool.take());
+			}
+
+			producer.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void deletesConsumedSegments() throws Exception {
+		PageSpool spool = new PageSpool(folder.getRoot().toPath(), "cleanup", 4L * 1024 * 1024);
+		Path spoolDirectory = spool.spoolDirectory;
+
+		for (int i = 0; i < 10; i++) {
+			spool.put(createPage(i));
+		}
+
+		int numSegmentFiles = countFiles(spoolDirectory);
+		assertTrue(numSegmentFiles > 1);
+
+		for (int i = 0; i < 10; i++) {
+			spool.take();
+		}
+
+		/* only the segment that is still being written remains */
+		assertEquals(1, countFiles(spoolDirectory));
+
+		spool.close();
+
+		assertFalse(Files.exists(spoolDirectory));
+	}
+
+	@Test
+	public void closeRemovesUnreadSegments() throws Exception {
+		PageSpool spool = new PageSpool(folder.getRoot().toPath(), "close", 4L * 1024 * 1024);
+		Path spoolDirectory = spool.spoolDirectory;
+
+		for (int i = 0; i < 10; i++) {
+			spool.put(createPage(i));
+		}
+
+		spool.close();
+
+		assertEquals(0, spool.size());
+		assertFalse(Files.exists(spoolDirectory));
+	}
+
+	static ScanPage createPage(int pageNumber) {
+		char[] filler = new char[VALUE_SIZE];
+		Arrays.fill(filler, 'x');
+
+		Map<String,AttributeValue> item = new HashMap<>();
+		item.put("key", new AttributeValue().withN(String.valueOf(pageNumber)));
+		item.put("value", new AttributeValue().withS(new String(filler)));
+
+		Map<String,AttributeValue> lastEvaluatedKey = new HashMap<>();
+		lastEvaluatedKey.put("key", new AttributeValue().withN(String.valueOf(pageNumber)));
+
+		List<Map<String,AttributeValue>> items = new ArrayList<>();
+		items.add(item);
+
+		return new ScanPage(pageNumber % 4, items, lastEvaluatedKey);
+	}
+
+	static void assertPage(int pageNumber, ScanPage page) {
+		assertEquals(pageNumber % 4, page.segment);
+		assertEquals(1, page.size());
+		assertEquals(String.valueOf(pageNumber), page.items.get(0).get("key").getN());
+		assertEquals(VALUE_SIZE, page.items.get(0).get("value").getS().length());
+		assertEquals(String.valueOf(pageNumber), page.lastEvaluatedKey.get("key").getN());
+	}
+
+	static int countFiles(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return (int) files.count();
+		}
+	}
+
+}